@@ -14,8 +14,15 @@
  */
 package jsyntaxpane;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.AbstractDocument.DefaultDocumentEvent;
 import javax.swing.undo.*;
 
@@ -31,9 +38,15 @@ import javax.swing.undo.*;
  *
  * http://tips4java.wordpress.com/2008/10/27/compound-undo-manager/
  *
+ * With compact edits (see setCompactEdits) the document's edits are not
+ * kept, but only their offset and their removed and inserted text.  The
+ * edits trimmed from the history can then be kept in a journal file, see
+ * openJournal.
+ *
  * @author Ayman Al-Sairafi, Hanns Holger Rutz
  */
 public class CompoundUndoManager extends UndoManager {
+    private static final Logger LOG = Logger.getLogger(CompoundUndoManager.class.getName());
     private final SyntaxDocument doc;
 
 	private CompoundEdit compoundEdit;
@@ -43,6 +56,20 @@ public class CompoundUndoManager extends UndoManager {
 	// This holds the start of the last line edited, if edits are on multiple
 	// lines, then they will not be combined.
 	private int	lastLine = -1;
+	// all edits go into one compound edit, see beginGroup
+	private boolean grouping = false;
+	// the most chars the edits may keep, 0 for no limit
+	private int memoryLimit = 0;
+	// the chars kept by all edits
+	private long retainedChars = 0;
+	// keep DeltaEdits instead of the document's edits
+	private boolean compact = false;
+	// the DeltaEdit of the document's edit being made, see textChanged
+	private DeltaEdit delta;
+	// set while a DeltaEdit changes the document
+	private boolean replaying = false;
+	// the edits trimmed from the history, see openJournal
+	private UndoJournal journal;
 
 	public CompoundUndoManager(SyntaxDocument doc) {
         this.doc = doc;
@@ -56,25 +83,45 @@ public class CompoundUndoManager extends UndoManager {
 	 */
 	@Override
 	public void undoableEditHappened(UndoableEditEvent e) {
+		if (replaying) {
+			return;
+		}
+		UndoableEdit edit = e.getEdit();
+		if (compact && delta != null) {
+			edit = delta;
+			delta = null;
+		}
 		//  Start a new compound edit
 
 		if (compoundEdit == null) {
-			compoundEdit = startCompoundEdit(e.getEdit());
+			compoundEdit = startCompoundEdit(edit);
 			startCombine = false;
             updateDirty();
 			return;
 		}
-    if (e.getEdit() instanceof DefaultDocumentEvent) {
-      // Java 6 to 8
-      AbstractDocument.DefaultDocumentEvent docEvt = (DefaultDocumentEvent) e.getEdit();
-
-      int editLine = doc.getLineNumberAt(docEvt.getOffset());
+		if (grouping) {
+			compoundEdit.addEdit(edit);
+			updateDirty();
+			return;
+		}
+    if (edit instanceof DefaultDocumentEvent || edit instanceof DeltaEdit) {
+      // Java 6 to 8, or compact edits
+      int editLine;
+      int editLength;
+      if (edit instanceof DeltaEdit) {
+        editLine = doc.getLineNumberAt(((DeltaEdit) edit).offset);
+        editLength = ((DeltaEdit) edit).getLength();
+      } else {
+        AbstractDocument.DefaultDocumentEvent docEvt = (DefaultDocumentEvent) edit;
+        editLine = doc.getLineNumberAt(docEvt.getOffset());
+        editLength = docEvt.getLength();
+      }
 
       //  Check for an incremental edit or backspace.
       //  The Change in Caret position and Document length should both be
       //  either 1 or -1.
-      if ((startCombine || Math.abs(docEvt.getLength()) == 1) && editLine == lastLine) {
-        compoundEdit.addEdit(e.getEdit());
+      if ((startCombine || Math.abs(editLength) == 1) && editLine == lastLine) {
+        compoundEdit.addEdit(edit);
         startCombine = false;
               updateDirty();
         return;
@@ -87,8 +134,8 @@ public class CompoundUndoManager extends UndoManager {
       // Java 9: It seems that all the edits are wrapped and we cannot get line number!
       // See https://github.com/netroby/jdk9-dev/blob/master/jdk/src/java.desktop/share/classes/javax/swing/text/AbstractDocument.java#L279
       // AbstractDocument.DefaultDocumentEventUndoableWrapper docEvt = e.getEdit();
-      if (startCombine && !e.getEdit().isSignificant()) {
-        compoundEdit.addEdit(e.getEdit());
+      if (startCombine && !edit.isSignificant()) {
+        compoundEdit.addEdit(edit);
         startCombine = false;
               updateDirty();
         return;
@@ -96,11 +143,72 @@ public class CompoundUndoManager extends UndoManager {
     }
 
 		compoundEdit.end();
-		compoundEdit = startCompoundEdit(e.getEdit());
+		compoundEdit = startCompoundEdit(edit);
 
         updateDirty();
 	}
 
+	/**
+	 * Keeps compact edits instead of the document's edits when enabled: only
+	 * the offset and the removed and inserted text of each edit.  This takes
+	 * much less memory than the document's edits, and consecutive typing is
+	 * kept as one edit.  Undo and redo then edit the document, so positions
+	 * in removed text are not restored by undo.
+	 * Changing this discards all edits.
+	 */
+	public synchronized void setCompactEdits(boolean compact) {
+		if (compact != this.compact) {
+			discardAllEdits();
+			this.compact = compact;
+		}
+	}
+
+	public synchronized boolean isCompactEdits() {
+		return compact;
+	}
+
+	/**
+	 * Called by SyntaxDocument with the text of each edit, before the
+	 * UndoableEditEvent of the edit is fired.  Only with compact edits.
+	 */
+	void textChanged(int offset, String removed, String inserted) {
+		if (!replaying) {
+			delta = new DeltaEdit(offset, removed, inserted);
+		}
+	}
+
+	/**
+	 * Returns true while undo or redo of a compact edit changes the
+	 * document
+	 */
+	boolean isReplaying() {
+		return replaying;
+	}
+
+	/**
+	 * Starts a group of edits that are undone and redone in one step, until
+	 * endGroup is called.  See SyntaxDocument.runBatch.
+	 */
+	void beginGroup() {
+		endCompoundEdit();
+		grouping = true;
+	}
+
+	void endGroup() {
+		endCompoundEdit();
+		grouping = false;
+	}
+
+	/*
+	 * Makes the next edit start a new compound edit
+	 */
+	private void endCompoundEdit() {
+		if (compoundEdit != null) {
+			compoundEdit.end();
+			compoundEdit = null;
+		}
+	}
+
     private void updateDirty() {
         doc.setCanUndo(canUndo());
         doc.setCanRedo(canRedo());
@@ -114,10 +222,19 @@ public class CompoundUndoManager extends UndoManager {
 
     @Override
     public synchronized void undo() throws CannotUndoException {
-        super.undo();
+        if (editToBeUndone() == null && journal != null && !journal.isEmpty()) {
+            pageIn();
+        } else {
+            super.undo();
+        }
         updateDirty();
     }
 
+    @Override
+    public synchronized boolean canUndo() {
+        return super.canUndo() || (journal != null && !journal.isEmpty());
+    }
+
     @Override
     protected void redoTo(UndoableEdit edit) throws CannotRedoException {
         super.redoTo(edit);
@@ -133,9 +250,167 @@ public class CompoundUndoManager extends UndoManager {
     @Override
     public synchronized void discardAllEdits() {
         super.discardAllEdits();
+        // the next edit starts a new compound edit, not one discarded
+        compoundEdit = null;
+        retainedChars = 0;
+        if (journal != null) {
+            try {
+                journal.clear();
+            } catch (IOException ex) {
+                dropJournal(ex);
+            }
+        }
         updateDirty();
     }
 
+    @Override
+    protected void trimEdits(int from, int to) {
+        // the edits that can be undone go to the journal
+        int undoable = edits.indexOf(editToBeUndone()) + 1;
+        for (int i = from; i <= to; i++) {
+            UndoableEdit edit = edits.get(i);
+            if (edit instanceof MyCompoundEdit) {
+                retainedChars -= ((MyCompoundEdit) edit).chars;
+            }
+            if (edit == compoundEdit) {
+                compoundEdit = null;
+            }
+            if (i < undoable && journal != null) {
+                spill(edit);
+            }
+        }
+        super.trimEdits(from, to);
+    }
+
+	/**
+	 * Keeps the edits trimmed from the history (see setLimit and
+	 * setMemoryLimit) in the given file, from where undo reads them back.
+	 * This enables compact edits, and discards the edits in memory.
+	 * If the file has the history the journal was closed with, for a
+	 * document with the same text, that history can be undone.  Otherwise
+	 * the file is emptied.
+	 *
+	 * @param text the text of the document
+	 */
+	public synchronized void openJournal(File file, CharSequence text) throws IOException {
+		closeJournal(text);
+		setCompactEdits(true);
+		discardAllEdits();
+		journal = new UndoJournal(file, text);
+		updateDirty();
+	}
+
+	/**
+	 * Moves the edits that can be undone to the journal, and closes it
+	 * with the hash of the given text.  Does nothing if no journal is open.
+	 *
+	 * @param text the text of the document
+	 */
+	public synchronized void closeJournal(CharSequence text) throws IOException {
+		if (journal == null) {
+			return;
+		}
+		int undoable = edits.indexOf(editToBeUndone()) + 1;
+		if (undoable > 0) {
+			trimEdits(0, undoable - 1);
+		}
+		if (journal != null) {
+			UndoJournal j = journal;
+			journal = null;
+			j.close(text);
+		}
+		updateDirty();
+	}
+
+	/*
+	 * Adds the edit to the journal.  The journal is only a stack of
+	 * compact edits, so other edits make the history in it unusable.
+	 */
+	private void spill(UndoableEdit edit) {
+		List<UndoJournal.Delta> deltas = null;
+		if (edit instanceof MyCompoundEdit) {
+			deltas = ((MyCompoundEdit) edit).getDeltas();
+		}
+		try {
+			if (deltas == null) {
+				journal.clear();
+			} else {
+				journal.push(deltas);
+			}
+		} catch (IOException ex) {
+			dropJournal(ex);
+		}
+	}
+
+	/*
+	 * Reads the newest edit from the journal and undoes it.  It is then
+	 * the first edit, and the next one to redo.
+	 */
+	private void pageIn() throws CannotUndoException {
+		List<UndoJournal.Delta> deltas;
+		try {
+			deltas = journal.pop();
+		} catch (IOException ex) {
+			dropJournal(ex);
+			throw new CannotUndoException();
+		}
+		MyCompoundEdit edit = new MyCompoundEdit();
+		for (UndoJournal.Delta d : deltas) {
+			edit.addDelta(new DeltaEdit(d.offset, d.removed, d.inserted));
+		}
+		edit.end();
+		edit.undo();
+		edits.add(0, edit);
+	}
+
+	private void dropJournal(IOException ex) {
+		LOG.log(Level.WARNING, "Undo journal dropped", ex);
+		UndoJournal j = journal;
+		journal = null;
+		try {
+			j.discard();
+		} catch (IOException e) {
+			// already reported
+		}
+	}
+
+	/**
+	 * Sets the most chars of inserted and removed text the edits may keep.
+	 * When they keep more, the oldest edits are discarded.  The last edit
+	 * is always kept, even if it alone keeps more.  0 (the default) means
+	 * no limit.  The number of edits is limited by setLimit too.
+	 */
+	public synchronized void setMemoryLimit(int chars) {
+		memoryLimit = chars;
+		trimForMemory();
+		updateDirty();
+	}
+
+	public synchronized int getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Returns the chars of inserted and removed text kept by the edits
+	 */
+	public synchronized long getRetainedChars() {
+		return retainedChars;
+	}
+
+	/*
+	 * Discards the oldest edits that can be undone, or else the newest
+	 * that can be redone, until the edits keep no more than memoryLimit
+	 */
+	private synchronized void trimForMemory() {
+		while (memoryLimit > 0 && retainedChars > memoryLimit && edits.size() > 1) {
+			if (editToBeUndone() != null) {
+				trimEdits(0, 0);
+			} else {
+				trimEdits(edits.size() - 1, edits.size() - 1);
+			}
+		}
+	}
+
     /*
                          **  Each CompoundEdit will store a group of related incremental edits
                          **  (ie. each character typed or backspaced is an incremental edit)
@@ -153,12 +428,62 @@ public class CompoundUndoManager extends UndoManager {
 		//  edits stored in the compound edit will be undone/redone at once
 
 		addEdit(compoundEdit);
+		trimForMemory();
 
 		return compoundEdit;
 	}
 
 	class MyCompoundEdit extends CompoundEdit {
 
+		// the chars of the text inserted and removed by the edits
+		private long chars;
+
+		/*
+		 * Adds a DeltaEdit read from the journal
+		 */
+		void addDelta(DeltaEdit d) {
+			edits.add(d);
+			chars += d.getLength();
+			retainedChars += d.getLength();
+		}
+
+		/*
+		 * Returns the deltas of the edits, or null if not all are DeltaEdits
+		 */
+		List<UndoJournal.Delta> getDeltas() {
+			List<UndoJournal.Delta> deltas = new ArrayList<UndoJournal.Delta>(edits.size());
+			for (UndoableEdit edit : edits) {
+				if (!(edit instanceof DeltaEdit)) {
+					return null;
+				}
+				DeltaEdit d = (DeltaEdit) edit;
+				deltas.add(new UndoJournal.Delta(d.offset, d.removed, d.inserted));
+			}
+			return deltas;
+		}
+
+		@Override
+		public boolean addEdit(UndoableEdit anEdit) {
+			UndoableEdit last = lastEdit();
+			int lastLength = (last instanceof DeltaEdit) ? ((DeltaEdit) last).getLength() : 0;
+			if (!super.addEdit(anEdit)) {
+				return false;
+			}
+			int added;
+			if (!(anEdit instanceof DeltaEdit)) {
+				added = doc.getLastEditLength();
+			} else if (lastEdit() == anEdit) {
+				added = ((DeltaEdit) anEdit).getLength();
+			} else {
+				// merged into the last edit, which may keep less text now
+				added = ((DeltaEdit) last).getLength() - lastLength;
+			}
+			chars += added;
+			retainedChars += added;
+			trimForMemory();
+			return true;
+		}
+
 		@Override
 		public boolean isInProgress() {
 			//  in order for the canUndo() and canRedo() methods to work
@@ -182,6 +507,97 @@ public class CompoundUndoManager extends UndoManager {
 		}
 	}
 
+	/**
+	 * A compact edit: the text removed and inserted at an offset.  Typing
+	 * and deleting at the end of the edit are added to it.
+	 */
+	private class DeltaEdit extends AbstractUndoableEdit {
+
+		private int offset;
+		private String removed;
+		private String inserted;
+
+		DeltaEdit(int offset, String removed, String inserted) {
+			this.offset = offset;
+			this.removed = removed;
+			this.inserted = inserted;
+		}
+
+		int getLength() {
+			return removed.length() + inserted.length();
+		}
+
+		@Override
+		public boolean addEdit(UndoableEdit anEdit) {
+			if (!(anEdit instanceof DeltaEdit)) {
+				return false;
+			}
+			DeltaEdit d = (DeltaEdit) anEdit;
+			int end = offset + inserted.length();
+			if (d.removed.isEmpty() && d.offset == end) {
+				// typing after the inserted text
+				inserted += d.inserted;
+				return true;
+			}
+			if (d.inserted.isEmpty() && d.offset + d.removed.length() == end &&
+				d.removed.length() <= inserted.length()) {
+				// backspace in the inserted text
+				inserted = inserted.substring(0, inserted.length() - d.removed.length());
+				return true;
+			}
+			if (inserted.isEmpty() && d.inserted.isEmpty()) {
+				if (d.offset + d.removed.length() == offset) {
+					// backspace before the removed text
+					offset = d.offset;
+					removed = d.removed + removed;
+					return true;
+				}
+				if (d.offset == offset) {
+					// delete after the removed text
+					removed += d.removed;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void undo() throws CannotUndoException {
+			super.undo();
+			if (!replace(inserted.length(), removed)) {
+				throw new CannotUndoException();
+			}
+		}
+
+		@Override
+		public void redo() throws CannotRedoException {
+			super.redo();
+			if (!replace(removed.length(), inserted)) {
+				throw new CannotRedoException();
+			}
+		}
+
+		/*
+		 * Replaces length chars at offset with text, without recording it
+		 */
+		private boolean replace(int length, String text) {
+			replaying = true;
+			try {
+				if (length > 0) {
+					doc.remove(offset, length);
+				}
+				if (!text.isEmpty()) {
+					doc.insertString(offset, text, null);
+				}
+				return true;
+			} catch (BadLocationException ex) {
+				return false;
+			} finally {
+				replaying = false;
+			}
+		}
+	}
+
 	/**
 	 * Start to combine the next operations together.  Only the next operation is combined.
 	 * The flag is then automatically reset.
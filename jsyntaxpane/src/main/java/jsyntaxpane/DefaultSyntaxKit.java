@@ -14,15 +14,18 @@
  */
 package jsyntaxpane;
 
-import java.awt.Color;
+import java.awt.Component;
 import java.awt.Container;
 import java.awt.Font;
-import java.awt.GraphicsEnvironment;
 import java.awt.Toolkit;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
 import java.awt.event.KeyEvent;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -84,8 +87,15 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 	public static final String CONFIG_TOOLBAR_BORDER = "Toolbar.Buttons.BorderPainted";
 	public static final String CONFIG_TOOLBAR_OPAQUE = "Toolbar.Buttons.Opaque";
 	public static final String CONFIG_TOOLBAR_BORDER_SIZE = "Toolbar.Buttons.BorderSize";
+	public static final String CONFIG_ASYNCHRONOUS_PARSING = "AsynchronousParsing";
+	public static final String CONFIG_LAZY_PARSING = "LazyParsing";
+	public static final String CONFIG_UNDO_MEMORY_LIMIT = "UndoMemoryLimit";
+	public static final String CONFIG_COMPACT_UNDO = "CompactUndo";
+	public static final String CONFIG_LAZY_INSTALL = "LazyInstall";
+	public static final String CONFIG_SNAPSHOT_CONTENT = "SnapshotContent";
 	private static final Pattern ACTION_KEY_PATTERN = Pattern.compile("Action\\.((\\w|-)+)");
 	private static final Pattern DEFAULT_ACTION_PATTERN = Pattern.compile("(DefaultAction.((\\w|-)+)).*");
+	// chosen when first needed, see getDefaultFont
 	private static Font DEFAULT_FONT;
 	private static Set<String> CONTENT_TYPES = new HashSet<String>();
 	private static Boolean initialized = false;
@@ -97,6 +107,9 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 		new WeakHashMap<JEditorPane, List<SyntaxComponent>>();
 	private final Map<JEditorPane, JPopupMenu> popupMenu =
 		new WeakHashMap<JEditorPane, JPopupMenu>();
+	// the panes waiting to be shown before their components are installed
+	private final Map<JEditorPane, HierarchyListener> pendingComponents =
+		new WeakHashMap<JEditorPane, HierarchyListener>();
 	/**
 	 * Main Configuration of SyntaxPane EditorKits
 	 */
@@ -147,6 +160,42 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 		}
 	}
 
+	/*
+	 * Adds the components once the pane is first shown
+	 */
+	private void addComponentsWhenShown(final JEditorPane editorPane) {
+		if (editorComponents.get(editorPane) == null) {
+			editorComponents.put(editorPane, new ArrayList<SyntaxComponent>());
+		}
+		if (editorPane.isShowing()) {
+			addComponents(editorPane);
+			return;
+		}
+		HierarchyListener l = new HierarchyListener() {
+
+			@Override
+			public void hierarchyChanged(HierarchyEvent e) {
+				if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 &&
+					editorPane.isShowing()) {
+					installPendingComponents(editorPane);
+				}
+			}
+		};
+		pendingComponents.put(editorPane, l);
+		editorPane.addHierarchyListener(l);
+	}
+
+	/*
+	 * Adds the components now if the pane is waiting to be shown
+	 */
+	private void installPendingComponents(JEditorPane editorPane) {
+		HierarchyListener l = pendingComponents.remove(editorPane);
+		if (l != null) {
+			editorPane.removeHierarchyListener(l);
+			addComponents(editorPane);
+		}
+	}
+
 	/**
 	 * Creates a SyntaxComponent of the the given class name and installs it on the pane
 	 */
@@ -175,6 +224,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 	 * editorComponents list
 	 */
 	public void deinstallComponent(JEditorPane pane, String className) {
+		installPendingComponents(pane);
 		for (SyntaxComponent c : editorComponents.get(pane)) {
 			if (c.getClass().getName().equals(className)) {
 				c.deinstall(pane);
@@ -190,6 +240,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 	 * @return true if component is installed, false otherwise
 	 */
 	public boolean isComponentInstalled(JEditorPane pane, String className) {
+		installPendingComponents(pane);
 		for (SyntaxComponent c : editorComponents.get(pane)) {
 			if (c.getClass().getName().equals(className)) {
 				return true;
@@ -206,6 +257,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 	 * @return true if component was installed, false if it was removed
 	 */
 	public boolean toggleComponent(JEditorPane pane, String className) {
+		installPendingComponents(pane);
 		for (SyntaxComponent c : editorComponents.get(pane)) {
 			if (c.getClass().getName().equals(className)) {
 				c.deinstall(pane);
@@ -217,11 +269,32 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 		return true;
 	}
 
+    /**
+     * Reads the text into the document.  A SyntaxDocument is only parsed
+     * once, after all text is read.  Text read into an empty document
+     * cannot be undone, otherwise it is undone in one step.
+     * The time taken is logged at level FINE.
+     */
     @Override
     public void read(Reader in, Document doc, int pos)
             throws IOException, BadLocationException {
-        super.read(in, doc, pos);
-        // ((SyntaxDocument) doc).clearUndos();
+        if (!(doc instanceof SyntaxDocument)) {
+            super.read(in, doc, pos);
+            return;
+        }
+        SyntaxDocument sdoc = (SyntaxDocument) doc;
+        long start = System.nanoTime();
+        int length = sdoc.getLength();
+        sdoc.beginLoad();
+        try {
+            super.read(in, doc, pos);
+        } finally {
+            sdoc.endLoad();
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Read {0} chars in {1} ms", new Object[]{
+                    sdoc.getLength() - length, (System.nanoTime() - start) / 1000000});
+        }
     }
 
         /**
@@ -232,16 +305,27 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 		if (menuItems == null || menuItems.length == 0) {
 			return;
 		}
-		popupMenu.put(editorPane, new JPopupMenu());
+		JPopupMenu menu;
+		if (isLazyInstall()) {
+			menu = new LazyPopupMenu(menuItems);
+		} else {
+			menu = new JPopupMenu();
+			addMenuItems(editorPane, menu, menuItems);
+		}
+		popupMenu.put(editorPane, menu);
+		editorPane.setComponentPopupMenu(menu);
+	}
+
+	private void addMenuItems(JEditorPane editorPane, JPopupMenu menu, String[] menuItems) {
 		JMenu stack = null;
 		for (String menuString : menuItems) {
 
 			// create the Popup menu
 			if (menuString.equals("-")) {
-				popupMenu.get(editorPane).addSeparator();
+				menu.addSeparator();
 			} else if (menuString.startsWith(">")) {
 				JMenu sub = new JMenu(menuString.substring(1));
-				popupMenu.get(editorPane).add(sub);
+				menu.add(sub);
 				stack = sub;
 			} else if (menuString.startsWith("<")) {
 				Container parent = stack == null ? null : stack.getParent();
@@ -251,7 +335,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 					stack = null;
 				}
 			} else {
-				Action action = editorPane.getActionMap().get(menuString);
+				Action action = getAction(editorPane, menuString);
 				if (action != null) {
 					JMenuItem menuItem;
 					if (action.getValue(Action.SELECTED_KEY) != null) {
@@ -264,14 +348,62 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 						menuItem.setText((String) action.getValue(ACTION_MENU_TEXT));
 					}
 					if (stack == null) {
-						popupMenu.get(editorPane).add(menuItem);
+						menu.add(menuItem);
 					} else {
 						stack.add(menuItem);
 					}
 				}
 			}
 		}
-		editorPane.setComponentPopupMenu(popupMenu.get(editorPane));
+	}
+
+	/**
+	 * A popup menu that adds its items when it is first shown
+	 */
+	private class LazyPopupMenu extends JPopupMenu {
+
+		private String[] menuItems;
+
+		LazyPopupMenu(String[] menuItems) {
+			this.menuItems = menuItems;
+		}
+
+		@Override
+		public void show(Component invoker, int x, int y) {
+			// the items are needed to place the menu
+			addItems(invoker);
+			super.show(invoker, x, y);
+		}
+
+		@Override
+		public void setVisible(boolean b) {
+			if (b) {
+				addItems(getInvoker());
+			}
+			super.setVisible(b);
+		}
+
+		private void addItems(Component invoker) {
+			if (menuItems != null && invoker instanceof JEditorPane) {
+				JEditorPane editorPane = (JEditorPane) invoker;
+				String[] items = menuItems;
+				menuItems = null;
+				configDefaultActions(editorPane);
+				addMenuItems(editorPane, this, items);
+			}
+		}
+	}
+
+	/*
+	 * Returns the action with the given name of the pane, creating it if it
+	 * was installed lazily.
+	 */
+	private static Action getAction(JEditorPane editorPane, String name) {
+		Action action = editorPane.getActionMap().get(name);
+		if (action instanceof LazyAction) {
+			action = ((LazyAction) action).getAction();
+		}
+		return action;
 	}
 
 	/**
@@ -293,13 +425,16 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 		boolean btnBorderPainted = getConfig().getBoolean(CONFIG_TOOLBAR_BORDER, false);
 		boolean btnOpaque = getConfig().getBoolean(CONFIG_TOOLBAR_OPAQUE, false);
 		int btnBorderSize = getConfig().getInteger(CONFIG_TOOLBAR_BORDER_SIZE, 2);
+		if (isLazyInstall()) {
+			configDefaultActions(editorPane);
+		}
 		for (String menuString : toolBarItems) {
 			if (menuString.equals("-") ||
 				menuString.startsWith("<") ||
 				menuString.startsWith(">")) {
 				toolbar.addSeparator();
 			} else {
-				Action action = editorPane.getActionMap().get(menuString);
+				Action action = getAction(editorPane, menuString);
 				if (action != null && action.getValue(Action.SMALL_ICON) != null) {
 					JButton b = toolbar.add(action);
 					b.setRolloverEnabled(btnRolloverEnabled);
@@ -327,29 +462,38 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 	 * Installs the View on the given EditorPane.  This is called by Swing and
 	 * can be used to do anything you need on the JEditorPane control.  Here
 	 * I set some default Actions.
+	 *
+	 * If CONFIG_LAZY_INSTALL is set, the keys are bound right away, but the
+	 * actions and the popup menu are only created when they are first used,
+	 * and the components are added when the pane is first shown.
 	 */
 	@Override
 	public void install(JEditorPane editorPane) {
 		super.install(editorPane);
-		// get our font
-		String fontName = getProperty("DefaultFont");
-		Font font = DEFAULT_FONT;
-		if (fontName != null) {
-			font = Font.decode(fontName);
+		// the font and colors are read once for all editors of this kit
+		KitSettings settings = KitSettings.get(getConfig());
+		Font font = getDefaultFont();
+		if (settings.font != null) {
+			font = settings.font;
 		}
 		editorPane.setFont(font);
-		Configuration conf = getConfig();
-		Color caretColor = conf.getColor(CONFIG_CARETCOLOR, Color.BLACK);
-		editorPane.setCaretColor(caretColor);
-		Color selectionColor = getConfig().getColor(CONFIG_SELECTION, new Color(0x99ccff));
-		editorPane.setSelectionColor(selectionColor);
+		editorPane.setCaretColor(settings.caretColor);
+		editorPane.setSelectionColor(settings.selectionColor);
 		addActions(editorPane);
-		addComponents(editorPane);
+		if (isLazyInstall()) {
+			addComponentsWhenShown(editorPane);
+		} else {
+			addComponents(editorPane);
+		}
 		addPopupMenu(editorPane);
 	}
 
 	@Override
 	public void deinstall(JEditorPane editorPane) {
+		HierarchyListener l = pendingComponents.remove(editorPane);
+		if (l != null) {
+			editorPane.removeHierarchyListener(l);
+		}
 		for (SyntaxComponent c : editorComponents.get(editorPane)) {
 			c.deinstall(editorPane);
 		}
@@ -377,18 +521,26 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 		imap.setParent(editorPane.getInputMap());
 		ActionMap amap = new ActionMap();
 		amap.setParent(editorPane.getActionMap());
+		boolean lazy = isLazyInstall();
 
 		for (Configuration.StringKeyMatcher m : getConfig().getKeys(ACTION_KEY_PATTERN)) {
 			String[] values = Configuration.COMMA_SEPARATOR.split(
 				m.value);
 			String actionClass = values[0];
 			String actionName = m.group1;
-			SyntaxAction action = createAction(actionClass);
-			// The configuration keys will need to be prefixed by Action
-			// to make it more readable in the Configuration files.
-			action.install(editorPane, getConfig(), DefaultSyntaxAction.ACTION_PREFIX + actionName);
-			// Add the action to the component also
-			amap.put(actionName, action);
+			SyntaxAction action = null;
+			LazyAction lazyAction = null;
+			if (lazy) {
+				lazyAction = new LazyAction(editorPane, amap, getConfig(), actionClass, actionName);
+				amap.put(actionName, lazyAction);
+			} else {
+				action = createAction(actionClass);
+				// The configuration keys will need to be prefixed by Action
+				// to make it more readable in the Configuration files.
+				action.install(editorPane, getConfig(), DefaultSyntaxAction.ACTION_PREFIX + actionName);
+				// Add the action to the component also
+				amap.put(actionName, action);
+			}
 			// Now bind all the keys to the Action we have using the InputMap
             String platformKey = getProperty(m.key + PLATFORM_KEY);
 			for (int i = 1; i < values.length; i++) {
@@ -402,12 +554,27 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 					throw new IllegalArgumentException("Invalid KeyStroke: " +
 						keyStrokeString);
 				}
-				action.putValue(Action.ACCELERATOR_KEY, ks);
+				if (lazy) {
+					lazyAction.setAccelerator(ks);
+				} else {
+					action.putValue(Action.ACCELERATOR_KEY, ks);
+				}
 				imap.put(ks, actionName);
 			}
 		}
 
-		// Now configure the Default actions for better display in the popup menu
+		// lazily installed panes configure them when the menu is first used
+		if (!lazy) {
+			configDefaultActions(editorPane);
+		}
+		editorPane.setActionMap(amap);
+		editorPane.setInputMap(JTextComponent.WHEN_FOCUSED, imap);
+	}
+
+	/*
+	 * Configures the Default actions for better display in the popup menu
+	 */
+	private void configDefaultActions(JEditorPane editorPane) {
 		for (Configuration.StringKeyMatcher m : getConfig().getKeys(DEFAULT_ACTION_PATTERN)) {
 			String name = m.matcher.group(2);
 			Action action = editorPane.getActionMap().get(name);
@@ -428,8 +595,10 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 			}
 			 */
 		}
-		editorPane.setActionMap(amap);
-		editorPane.setInputMap(JTextComponent.WHEN_FOCUSED, imap);
+	}
+
+	private boolean isLazyInstall() {
+		return getConfig().getBoolean(CONFIG_LAZY_INSTALL, false);
 	}
 
 	private void configActionProperties(Action action, String actionName, String configKey) {
@@ -460,7 +629,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 		}
 	}
 
-	private SyntaxAction createAction(String actionClassName) {
+	static SyntaxAction createAction(String actionClassName) {
 		SyntaxAction action;
 		try {
 			Class<?> clazz = Class.forName(actionClassName);
@@ -489,7 +658,26 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 	 */
 	@Override
 	public Document createDefaultDocument() {
-		return new SyntaxDocument(lexer);
+		SyntaxDocument doc = new SyntaxDocument(lexer,
+				getConfig().getBoolean(CONFIG_SNAPSHOT_CONTENT, false));
+		doc.setAsynchronousParsing(getConfig().getBoolean(CONFIG_ASYNCHRONOUS_PARSING, false));
+		doc.setLazyParsing(getConfig().getBoolean(CONFIG_LAZY_PARSING, false));
+		doc.setUndoMemoryLimit(getConfig().getInteger(CONFIG_UNDO_MEMORY_LIMIT, 0));
+		doc.setCompactUndo(getConfig().getBoolean(CONFIG_COMPACT_UNDO, false));
+		return doc;
+	}
+
+	/**
+	 * Creates a document with the text of the given file, which is mapped
+	 * into memory instead of read into the heap.  Use this instead of read
+	 * to view huge files, see SyntaxDocument(Lexer, File, Charset).
+	 */
+	public Document createDocument(File file, Charset charset) throws IOException {
+		SyntaxDocument doc = new SyntaxDocument(lexer, file, charset);
+		doc.setAsynchronousParsing(getConfig().getBoolean(CONFIG_ASYNCHRONOUS_PARSING, false));
+		doc.setUndoMemoryLimit(getConfig().getInteger(CONFIG_UNDO_MEMORY_LIMIT, 0));
+		doc.setCompactUndo(getConfig().getBoolean(CONFIG_COMPACT_UNDO, false));
+		return doc;
 	}
 
 	/**
@@ -499,35 +687,54 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 	 * corresponding ContentType of the JEditorPane.  After this is called,
 	 * you can simply call the editor.setContentType("text/java") on the
 	 * control and you will be done.
+	 *
+	 * Only the class names are registered, JEditorPane loads and creates a
+	 * kit when its content type is first used.  Unlike registerContentType,
+	 * a kit that cannot be created is not reported here, JEditorPane uses
+	 * its plain kit for the type then.
 	 */
 	public synchronized static void initKit() {
-		// attempt to find a suitable default font
-		String defaultFont = getConfig(DefaultSyntaxKit.class).getString("DefaultFont");
-		if (defaultFont != null) {
-			DEFAULT_FONT = Font.decode(defaultFont);
-		} else {
-			GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-			String[] fonts = ge.getAvailableFontFamilyNames();
-			Arrays.sort(fonts);
-			if (Arrays.binarySearch(fonts, "Courier New") >= 0) {
-				DEFAULT_FONT = new Font("Courier New", Font.PLAIN, 12);
-			} else if (Arrays.binarySearch(fonts, "Courier") >= 0) {
-				DEFAULT_FONT = new Font("Courier", Font.PLAIN, 12);
-			} else if (Arrays.binarySearch(fonts, "Monospaced") >= 0) {
-				DEFAULT_FONT = new Font("Monospaced", Font.PLAIN, 13);
-			}
-		}
-
 		// read the Default Kits and their associated types
 		Properties kitsForTypes = JarServiceProvider.readProperties("jsyntaxpane/kitsfortypes");
+		ClassLoader cl = DefaultSyntaxKit.class.getClassLoader();
 		for (Map.Entry<Object, Object> e : kitsForTypes.entrySet()) {
 			String type = e.getKey().toString();
 			String className = e.getValue().toString();
-			registerContentType(type, className);
+			JEditorPane.registerEditorKitForContentType(type, className, cl);
+			CONTENT_TYPES.add(type);
 		}
 		initialized = true;
 	}
 
+	/**
+	 * Returns the font of editors whose kit has no DefaultFont.  It is
+	 * chosen once, when it is first needed.
+	 */
+	private static synchronized Font getDefaultFont() {
+		if (DEFAULT_FONT == null) {
+			String defaultFont = getConfig(DefaultSyntaxKit.class).getString("DefaultFont");
+			if (defaultFont != null) {
+				DEFAULT_FONT = Font.decode(defaultFont);
+			} else if (isFontAvailable("Courier New")) {
+				DEFAULT_FONT = new Font("Courier New", Font.PLAIN, 12);
+			} else if (isFontAvailable("Courier")) {
+				DEFAULT_FONT = new Font("Courier", Font.PLAIN, 12);
+			} else {
+				// a logical font, which is always available
+				DEFAULT_FONT = new Font("Monospaced", Font.PLAIN, 13);
+			}
+		}
+		return DEFAULT_FONT;
+	}
+
+	/*
+	 * A Font of a family that is not available falls back to Dialog, so this
+	 * does not need to list all font families.
+	 */
+	private static boolean isFontAvailable(String family) {
+		return new Font(family, Font.PLAIN, 12).getFamily(Locale.ENGLISH).equalsIgnoreCase(family);
+	}
+
 	/**
 	 * Registers the given content type to use the given class name as its kit
 	 * When this is called, an entry is added into the private HashMap of the
@@ -614,6 +821,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 			CONFIGS = new WeakHashMap<Class<? extends DefaultSyntaxKit>, Configuration>();
 			Configuration defaultConfig = new Configuration(DefaultSyntaxKit.class);
 			loadConfig(defaultConfig, DefaultSyntaxKit.class);
+			defaultConfig.useBundledValues();
 			CONFIGS.put(DefaultSyntaxKit.class, defaultConfig);
 		}
 
@@ -626,6 +834,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 			Configuration defaults = getConfig(superKit);
 			Configuration mine = new Configuration(kit, defaults);
 			loadConfig(mine, kit);
+			mine.useBundledValues();
 			CONFIGS.put(kit, mine);
 			return mine;
 		}
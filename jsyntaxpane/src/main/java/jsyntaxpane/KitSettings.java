@@ -0,0 +1,71 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.util.Map;
+import java.util.WeakHashMap;
+import jsyntaxpane.util.Configuration;
+
+/**
+ * The styles, colors and flags of a Configuration that the editors and
+ * views of a kit use.  They are read once and shared by all editors until
+ * the Configuration changes, see Configuration.getVersion.  Nothing here
+ * may be changed once created.
+ */
+final class KitSettings {
+
+    private static final Map<Configuration, KitSettings> SETTINGS =
+            new WeakHashMap<Configuration, KitSettings>();
+    private final int version;
+    final SyntaxStyles styles;
+    // null if the Configuration has no DefaultFont
+    final Font font;
+    final Color caretColor;
+    final Color selectionColor;
+    final boolean singleColorSelect;
+    final Color rightMarginColor;
+    final int rightMarginColumn;
+    final int lineCacheSize;
+
+    private KitSettings(Configuration config, int version) {
+        this.version = version;
+        styles = SyntaxStyles.read(config);
+        String fontName = config.getString("DefaultFont");
+        font = (fontName == null) ? null : Font.decode(fontName);
+        caretColor = config.getColor(DefaultSyntaxKit.CONFIG_CARETCOLOR, Color.BLACK);
+        selectionColor = config.getColor(DefaultSyntaxKit.CONFIG_SELECTION,
+                new Color(0x99ccff));
+        singleColorSelect = config.getBoolean(SyntaxView.PROPERTY_SINGLE_COLOR_SELECT, false);
+        rightMarginColor = new Color(config.getInteger(
+                SyntaxView.PROPERTY_RIGHT_MARGIN_COLOR, 0xFF7777));
+        rightMarginColumn = config.getInteger(SyntaxView.PROPERTY_RIGHT_MARGIN_COLUMN, 0);
+        lineCacheSize = config.getInteger(SyntaxView.PROPERTY_LINE_CACHE_SIZE, 0);
+    }
+
+    /**
+     * Returns the settings of the given Configuration, which are read again
+     * only if it changed since they were last read.
+     */
+    static synchronized KitSettings get(Configuration config) {
+        int v = config.getVersion();
+        KitSettings settings = SETTINGS.get(config);
+        if (settings == null || settings.version != v) {
+            settings = new KitSettings(config, v);
+            SETTINGS.put(config, settings);
+        }
+        return settings;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.awt.event.ActionEvent;
+import java.beans.PropertyChangeListener;
+import javax.swing.Action;
+import javax.swing.ActionMap;
+import javax.swing.JEditorPane;
+import javax.swing.KeyStroke;
+import jsyntaxpane.actions.DefaultSyntaxAction;
+import jsyntaxpane.actions.SyntaxAction;
+import jsyntaxpane.util.Configuration;
+
+/**
+ * Stands in the ActionMap of an editor for a SyntaxAction that is not
+ * created yet.  The action is created and installed the first time this is
+ * used, then it replaces this in the ActionMap.  Everything is delegated to
+ * it, so a key binding or menu item may keep using this.
+ */
+final class LazyAction implements Action {
+
+    private final JEditorPane editor;
+    private final ActionMap map;
+    private final Configuration config;
+    private final String className;
+    private final String name;
+    private KeyStroke accelerator;
+    private SyntaxAction action;
+
+    /**
+     * Creates the placeholder for the action with the given class and name
+     * in the ActionMap of the editor.
+     */
+    LazyAction(JEditorPane editor, ActionMap map, Configuration config,
+            String className, String name) {
+        this.editor = editor;
+        this.map = map;
+        this.config = config;
+        this.className = className;
+        this.name = name;
+    }
+
+    /**
+     * Sets the key shown in menus for the action
+     */
+    void setAccelerator(KeyStroke ks) {
+        accelerator = ks;
+    }
+
+    /**
+     * Returns the action, which is created and installed if needed
+     */
+    SyntaxAction getAction() {
+        if (action == null) {
+            action = DefaultSyntaxKit.createAction(className);
+            action.install(editor, config, DefaultSyntaxAction.ACTION_PREFIX + name);
+            if (accelerator != null) {
+                action.putValue(ACCELERATOR_KEY, accelerator);
+            }
+            if (map.get(name) == this) {
+                map.put(name, action);
+            }
+        }
+        return action;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        getAction().actionPerformed(e);
+    }
+
+    @Override
+    public Object getValue(String key) {
+        return getAction().getValue(key);
+    }
+
+    @Override
+    public void putValue(String key, Object value) {
+        getAction().putValue(key, value);
+    }
+
+    @Override
+    public void setEnabled(boolean b) {
+        getAction().setEnabled(b);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return getAction().isEnabled();
+    }
+
+    @Override
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        getAction().addPropertyChangeListener(listener);
+    }
+
+    @Override
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        getAction().removePropertyChangeListener(listener);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import jsyntaxpane.lexers.DefaultJFlexLexer;
+
+/**
+ * Lends lexers of one class to Tokenizers, so the documents of a kit can
+ * be tokenized at the same time instead of waiting for the one lexer of
+ * the kit.  A lexer keeps its state while lexing, so each lent lexer is
+ * only used by one Tokenizer until it is given back.  Lexers given back
+ * are kept, with their buffers, for the next parse.
+ *
+ * Only the lexers JFlex generates in jsyntaxpane.lexers are pooled: public
+ * final DefaultJFlexLexers with a public constructor without arguments.
+ * Their JFlex tables are static, so a new lexer is the same as the kit's
+ * and only takes its own buffer.  Other lexers may hold settings, so they
+ * cannot be copied and are shared as before.
+ *
+ * A pool is kept while a Tokenizer uses it.  The pools are held weakly, as
+ * each references the class of its lexers, and a class would never be
+ * dropped from the WeakHashMap otherwise.
+ */
+final class LexerPool {
+
+    private static final String PACKAGE = DefaultJFlexLexer.class.getName().substring(
+            0, DefaultJFlexLexer.class.getName().lastIndexOf('.') + 1);
+    private static final Map<Class<?>, WeakReference<LexerPool>> POOLS =
+            new WeakHashMap<Class<?>, WeakReference<LexerPool>>();
+    // lexers kept beyond this are left to the garbage collector
+    private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+    private final Constructor<? extends Lexer> constructor;
+    private final List<Lexer> idle = new ArrayList<Lexer>();
+
+    private LexerPool(Constructor<? extends Lexer> constructor) {
+        this.constructor = constructor;
+    }
+
+    /**
+     * Returns the pool of lexers of the class of the given lexer, or null
+     * if that class cannot be pooled.
+     */
+    static synchronized LexerPool of(Lexer lexer) {
+        Class<? extends Lexer> c = lexer.getClass();
+        if (!isGenerated(c)) {
+            return null;
+        }
+        WeakReference<LexerPool> ref = POOLS.get(c);
+        LexerPool pool = (ref == null) ? null : ref.get();
+        if (pool == null) {
+            try {
+                pool = new LexerPool(c.getConstructor());
+            } catch (NoSuchMethodException ex) {
+                // cannot be copied
+                return null;
+            }
+            POOLS.put(c, new WeakReference<LexerPool>(pool));
+        }
+        return pool;
+    }
+
+    /*
+     * Returns true if the class is one of the lexers generated by JFlex
+     * in jsyntaxpane.lexers, which are public and final
+     */
+    private static boolean isGenerated(Class<?> c) {
+        int modifiers = c.getModifiers();
+        return DefaultJFlexLexer.class.isAssignableFrom(c) &&
+                Modifier.isPublic(modifiers) && Modifier.isFinal(modifiers) &&
+                c.getName().lastIndexOf('.') + 1 == PACKAGE.length() &&
+                c.getName().startsWith(PACKAGE);
+    }
+
+    /**
+     * Returns a lexer that no one else uses until it is given to release
+     */
+    Lexer acquire() {
+        synchronized (idle) {
+            if (!idle.isEmpty()) {
+                return idle.remove(idle.size() - 1);
+            }
+        }
+        try {
+            return constructor.newInstance();
+        } catch (InstantiationException ex) {
+            throw new IllegalArgumentException("Cannot create lexer: " +
+                    constructor.getDeclaringClass().getName(), ex);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException("Cannot create lexer: " +
+                    constructor.getDeclaringClass().getName(), ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalArgumentException("Cannot create lexer: " +
+                    constructor.getDeclaringClass().getName(), ex.getCause());
+        }
+    }
+
+    /**
+     * Gives back a lexer returned by acquire
+     */
+    void release(Lexer lexer) {
+        synchronized (idle) {
+            if (idle.size() < MAX_IDLE) {
+                idle.add(lexer);
+            }
+        }
+    }
+}
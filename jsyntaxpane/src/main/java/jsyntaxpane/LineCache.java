@@ -0,0 +1,248 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+import javax.swing.text.Utilities;
+
+/**
+ * The laid out glyphs of the lines a SyntaxView painted, so lines that did
+ * not change are drawn again without iterating their tokens and laying out
+ * their text, for example when scrolling.
+ *
+ * The view drops the lines whose text or tokens change, see remove, and
+ * the lines that only moved are drawn again as they are.  All lines are
+ * dropped when the whole document is parsed again, or the styles, the font
+ * or the FontRenderContext change, see validate.  The least recently
+ * painted lines are dropped when the lines take more than the given memory.
+ */
+final class LineCache {
+
+    private final int maxBytes;
+    private int bytes;
+    private final LinkedHashMap<Element, Line> lines =
+            new LinkedHashMap<Element, Line>(64, 0.75f, true);
+    // what the cached lines were laid out for
+    private Font font;
+    private FontRenderContext frc;
+    private int parseCount = -1;
+    private int stylesVersion;
+
+    /**
+     * Creates a cache for lines that take about maxBytes of memory
+     */
+    LineCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Drops all lines if any of the given values is not the one they were
+     * laid out for.
+     */
+    void validate(Font font, FontRenderContext frc, int parseCount,
+            int stylesVersion) {
+        if (parseCount != this.parseCount || stylesVersion != this.stylesVersion ||
+                !font.equals(this.font) || !frc.equals(this.frc)) {
+            clear();
+            this.font = font;
+            this.frc = frc;
+            this.parseCount = parseCount;
+            this.stylesVersion = stylesVersion;
+        }
+    }
+
+    /**
+     * Returns the line laid out for the text from p0 to p1 of the element
+     * at x, or null if there is none.  The line may have moved since.
+     */
+    Line get(Element elem, int p0, int p1, int x) {
+        Line line = lines.get(elem);
+        if (line != null && line.length == p1 - p0 && line.x == x) {
+            return line;
+        }
+        return null;
+    }
+
+    void put(Element elem, Line line) {
+        Line old = lines.put(elem, line);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += line.bytes;
+        Iterator<Line> i = lines.values().iterator();
+        while (bytes > maxBytes && i.hasNext()) {
+            bytes -= i.next().bytes;
+            i.remove();
+        }
+    }
+
+    /**
+     * Drops the line of the given element, if any
+     */
+    void remove(Element elem) {
+        Line old = lines.remove(elem);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+    }
+
+    void clear() {
+        lines.clear();
+        bytes = 0;
+    }
+
+    int size() {
+        return lines.size();
+    }
+
+    /**
+     * The parts of a line, each drawn in the color of its style.  Parts that
+     * can be drawn with a GlyphVector keep it, other parts keep their text
+     * and are drawn by their style each time.
+     */
+    static final class Line {
+
+        // the offset of the line while it is laid out
+        private final int start;
+        final int length;
+        final int x;
+        private int width;
+        private int count;
+        private int[] xs = new int[8];
+        private SyntaxStyle[] styles = new SyntaxStyle[8];
+        private GlyphVector[] glyphs = new GlyphVector[8];
+        private char[][] texts = new char[8][];
+        private int[] offsets = new int[8];
+        private int bytes = 64;
+
+        /**
+         * Creates an empty line, for the text from p0 to p1 drawn at x.
+         */
+        Line(int p0, int p1, int x) {
+            this.start = p0;
+            this.length = p1 - p0;
+            this.x = x;
+        }
+
+        /**
+         * Adds the text of the segment drawn with the given style at x, the
+         * same way Utilities.drawTabbedText draws it, and returns the x
+         * where the text ends.
+         */
+        int add(SyntaxStyle style, Segment s, int x, Graphics2D g,
+                TabExpander e, int startOffset) {
+            if ((style.getFontStyle() & 0x18) != 0 || !isSimple(s)) {
+                // highlights, borders and complex text are drawn by the style
+                char[] text = Arrays.copyOfRange(s.array, s.offset, s.offset + s.count);
+                add(style, null, text, startOffset - start, x, text.length * 2);
+                FontMetrics fm = g.getFontMetrics(style.getFont(g.getFont()));
+                return x + Utilities.getTabbedTextWidth(s, fm, x, e, startOffset);
+            }
+            Font f = style.getFont(g.getFont());
+            FontMetrics fm = g.getFontMetrics(f);
+            FontRenderContext frc = g.getFontRenderContext();
+            int n = s.offset + s.count;
+            int flush = s.offset;
+            for (int i = s.offset; i <= n; i++) {
+                char c = (i < n) ? s.array[i] : '\n';
+                if (c == '\t' || c == '\n' || c == '\r') {
+                    if (i > flush) {
+                        GlyphVector gv = f.createGlyphVector(frc,
+                                Arrays.copyOfRange(s.array, flush, i));
+                        add(style, gv, null, 0, x, (i - flush) * 16);
+                        x += fm.charsWidth(s.array, flush, i - flush);
+                    }
+                    if (c == '\t' && i < n) {
+                        x = (int) e.nextTabStop(x, startOffset + i - s.offset);
+                    }
+                    flush = i + 1;
+                }
+            }
+            return x;
+        }
+
+        private void add(SyntaxStyle style, GlyphVector gv, char[] text,
+                int offset, int x, int size) {
+            if (count == xs.length) {
+                int capacity = count * 2;
+                xs = Arrays.copyOf(xs, capacity);
+                styles = Arrays.copyOf(styles, capacity);
+                glyphs = Arrays.copyOf(glyphs, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            xs[count] = x - this.x;
+            styles[count] = style;
+            glyphs[count] = gv;
+            texts[count] = text;
+            offsets[count] = offset;
+            count++;
+            bytes += 48 + size;
+        }
+
+        /**
+         * Ends the line at x
+         */
+        void finish(int x) {
+            width = x - this.x;
+        }
+
+        /**
+         * Draws the line, which now starts at offset p0, at y, and returns
+         * the x where it ends.
+         */
+        int draw(Graphics2D g, int p0, int y, TabExpander e) {
+            Segment s = null;
+            for (int i = 0; i < count; i++) {
+                SyntaxStyle style = styles[i];
+                if (glyphs[i] != null) {
+                    g.setColor(style.getColor());
+                    g.drawGlyphVector(glyphs[i], x + xs[i], y);
+                } else {
+                    if (s == null) {
+                        s = new Segment();
+                    }
+                    s.array = texts[i];
+                    s.offset = 0;
+                    s.count = texts[i].length;
+                    style.drawText(s, x + xs[i], y, g, e, p0 + offsets[i]);
+                }
+            }
+            return x + width;
+        }
+
+        /*
+         * Text with chars that can combine or need shaping is not laid out
+         * here, GlyphVectors would draw it wrong.
+         */
+        private static boolean isSimple(Segment s) {
+            for (int i = s.offset; i < s.offset + s.count; i++) {
+                if (s.array[i] >= 0x0300) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The text of a file mapped into memory.  The chars are decoded from the
+ * mapped bytes when they are read, so the text takes no heap apart from an
+ * index with the char offset of every 4K of bytes.
+ *
+ * Like DefaultEditorKit.read, "\r\n" and "\r" line ends are read as "\n",
+ * see getLineSeparator.  Only UTF-8 and charsets with one byte per char
+ * are supported.  The file must not be changed while it is mapped: writing
+ * it truncates it first, and reading the text then fails with an
+ * InternalError.  SyntaxDocument.write replaces the file instead.
+ */
+final class MappedText implements CharSequence {
+
+    private static final int BLOCK_SHIFT = 12;
+    // bytes are mapped in buffers of 1G, the most a MappedByteBuffer can hold
+    private static final int BUFFER_SHIFT = 30;
+    private final File file;
+    private final MappedByteBuffer[] buffers;
+    private final long size;
+    // the chars of single byte charsets, null for UTF-8
+    private final char[] table;
+    // the char offset of each block of bytes, and the total in the last entry
+    private final int[] blockChars;
+    private String lineSeparator;
+    // the last decoded block
+    private int cachedBlock = -1;
+    private char[] cache = new char[1 << BLOCK_SHIFT];
+    private byte[] bytes = new byte[(1 << BLOCK_SHIFT) + 1];
+
+    /**
+     * Maps the given file
+     *
+     * @throws IOException if the file cannot be read, has more chars than a
+     * Document can hold, or the charset is not supported
+     */
+    MappedText(File file, Charset charset) throws IOException {
+        this.file = file;
+        table = createTable(charset);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            size = channel.size();
+            buffers = new MappedByteBuffer[(int) (size >>> BUFFER_SHIFT) + 1];
+            for (int i = 0; i < buffers.length; i++) {
+                long start = (long) i << BUFFER_SHIFT;
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(size - start, 1L << BUFFER_SHIFT));
+            }
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+        int blocks = (int) (size >>> BLOCK_SHIFT) + 1;
+        blockChars = new int[blocks + 1];
+        long chars = 0;
+        for (int i = 0; i < blocks; i++) {
+            blockChars[i] = (int) chars;
+            chars += decode(i, null);
+            if (chars >= Integer.MAX_VALUE) {
+                throw new IOException(file + " has too many chars");
+            }
+        }
+        blockChars[blocks] = (int) chars;
+    }
+
+    /**
+     * Returns the file mapped
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the line separator of the first line, or null if the text
+     * has a single line.
+     */
+    String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    @Override
+    public int length() {
+        return blockChars[blockChars.length - 1];
+    }
+
+    @Override
+    public synchronized char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        int block = getBlock(index);
+        return cache[index - blockChars[block]];
+    }
+
+    /**
+     * Copies the chars from start to end into dst at the given offset
+     */
+    synchronized void getChars(int start, int end, char[] dst, int offset) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("Range: " + start + "-" + end);
+        }
+        while (start < end) {
+            int block = getBlock(start);
+            int from = start - blockChars[block];
+            int n = Math.min(end, blockChars[block + 1]) - start;
+            System.arraycopy(cache, from, dst, offset, n);
+            start += n;
+            offset += n;
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    /*
+     * Finds the block holding the char at index, and decodes it into cache
+     */
+    private int getBlock(int index) {
+        int lo = 0;
+        int hi = blockChars.length - 2;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockChars[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (lo != cachedBlock) {
+            cachedBlock = -1;
+            decode(lo, cache);
+            cachedBlock = lo;
+        }
+        return lo;
+    }
+
+    /*
+     * Decodes the chars of the given block into chars, or only counts them
+     * if chars is null.  Blocks start at the first char that starts at or
+     * after a multiple of the block size.
+     */
+    private int decode(int block, char[] chars) {
+        long start = getBlockStart(block);
+        int end = (int) (getBlockStart(block + 1) - start);
+        if (chars != null && chars.length < end) {
+            chars = cache = new char[end];
+        }
+        // a CR LF may cross the end of the block
+        int avail = (int) Math.min(end + 1, size - start);
+        if (bytes.length < avail) {
+            bytes = new byte[avail];
+        }
+        getBytes(start, bytes, avail);
+        int n = 0;
+        int i = 0;
+        while (i < end) {
+            int b = bytes[i] & 0xff;
+            char c;
+            if (b == '\r') {
+                // CR LF is read as LF and a single CR as LF
+                boolean crlf = i + 1 < avail && bytes[i + 1] == '\n';
+                if (lineSeparator == null) {
+                    lineSeparator = crlf ? "\r\n" : "\r";
+                }
+                i++;
+                if (crlf) {
+                    continue;
+                }
+                c = '\n';
+            } else if (b < 0x80) {
+                if (b == '\n' && lineSeparator == null) {
+                    lineSeparator = "\n";
+                }
+                c = (table == null) ? (char) b : table[b];
+                i++;
+            } else if (table != null) {
+                c = table[b];
+                i++;
+            } else {
+                int length = getSequenceLength(bytes, i, end, b);
+                if (length < 0) {
+                    c = '\ufffd';
+                    i++;
+                } else {
+                    int cp = b & (0xff >> (length + 1));
+                    for (int k = 1; k < length; k++) {
+                        cp = (cp << 6) | (bytes[i + k] & 0x3f);
+                    }
+                    i += length;
+                    if (cp >= 0x10000) {
+                        if (chars != null) {
+                            chars[n] = Character.highSurrogate(cp);
+                        }
+                        n++;
+                        c = Character.lowSurrogate(cp);
+                    } else {
+                        c = (char) cp;
+                    }
+                }
+            }
+            if (chars != null) {
+                chars[n] = c;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /*
+     * Returns the length of the UTF-8 sequence starting at i with the given
+     * lead byte, or -1 if the sequence is malformed.  Overlong and surrogate
+     * encodings are malformed too.  A valid sequence never crosses the end
+     * of a block, as blocks start at a lead byte.
+     */
+    private static int getSequenceLength(byte[] bytes, int i, int end, int b) {
+        int length;
+        int min;
+        if (b >= 0xc2 && b <= 0xdf) {
+            length = 2;
+            min = 0x80;
+        } else if (b >= 0xe0 && b <= 0xef) {
+            length = 3;
+            min = 0x800;
+        } else if (b >= 0xf0 && b <= 0xf4) {
+            length = 4;
+            min = 0x10000;
+        } else {
+            return -1;
+        }
+        if (i + length > end) {
+            return -1;
+        }
+        int cp = b & (0xff >> (length + 1));
+        for (int k = 1; k < length; k++) {
+            int c = bytes[i + k] & 0xff;
+            if ((c & 0xc0) != 0x80) {
+                return -1;
+            }
+            cp = (cp << 6) | (c & 0x3f);
+        }
+        if (cp < min || cp > 0x10ffff || (cp >= 0xd800 && cp <= 0xdfff)) {
+            return -1;
+        }
+        return length;
+    }
+
+    private long getBlockStart(int block) {
+        long pos = Math.min((long) block << BLOCK_SHIFT, size);
+        if (table == null) {
+            // UTF-8 continuation bytes belong to the block before
+            while (pos < size && (getByte(pos) & 0xc0) == 0x80) {
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    /*
+     * Copies n bytes from pos into dst
+     */
+    private void getBytes(long pos, byte[] dst, int n) {
+        int off = 0;
+        while (off < n) {
+            ByteBuffer buffer = buffers[(int) (pos >>> BUFFER_SHIFT)].duplicate();
+            buffer.position((int) (pos & ((1 << BUFFER_SHIFT) - 1)));
+            int k = Math.min(n - off, buffer.remaining());
+            buffer.get(dst, off, k);
+            off += k;
+            pos += k;
+        }
+    }
+
+    private byte getByte(long pos) {
+        return buffers[(int) (pos >>> BUFFER_SHIFT)].get((int) (pos & ((1 << BUFFER_SHIFT) - 1)));
+    }
+
+    /*
+     * Returns the chars of the 256 bytes for single byte charsets, or null
+     * for UTF-8
+     */
+    private static char[] createTable(Charset charset) throws IOException {
+        if (charset.name().equals("UTF-8")) {
+            return null;
+        }
+        if (charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            throw new IOException("Charset not supported: " + charset);
+        }
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        try {
+            CharBuffer chars = decoder.decode(ByteBuffer.wrap(bytes));
+            if (chars.remaining() != 256) {
+                throw new IOException("Charset not supported: " + charset);
+            }
+            char[] table = new char[256];
+            chars.get(table);
+            return table;
+        } catch (CharacterCodingException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
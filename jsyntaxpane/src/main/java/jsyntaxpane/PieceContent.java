@@ -0,0 +1,737 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * A document Content that keeps its original text as it is, and records
+ * the edits in a piece table: the text is a list of pieces, each a range
+ * of the original text or of a buffer holding all inserted text.  So the
+ * original text is never copied, which makes it possible to use a file
+ * mapped into memory (see MappedText) as the text of a document.
+ *
+ * Snapshots of the text are cheap: they share the pieces and the buffer,
+ * which only grows, and the pieces are copied by the next edit.  Undo and
+ * redo put back the pieces the text had, so they add nothing to the buffer.
+ *
+ * Positions are kept sorted by offset, and positions created at the same
+ * offset are shared, so the two positions of neighbouring lines take one
+ * object.  Like GapContent, the marks after the last edit are stored with
+ * a large gap added to their offset, so an edit only moves the marks
+ * between it and the edit before, and the marks of positions no longer
+ * used are dropped.
+ */
+final class PieceContent implements AbstractDocument.Content {
+
+    private static final int CHUNK = 16 * 1024;
+    private final CharSequence original;
+    private char[] added = new char[16];
+    private int addedLength;
+    private int length;
+    // the pieces: the offset of each in the text, and the start of its chars
+    // in the original text if >= 0 or in added at -start-1 if < 0
+    private int[] offsets = new int[16];
+    private int[] starts = new int[16];
+    private int[] lengths = new int[16];
+    private int count;
+    // the pieces are used by a snapshot, and must be copied to be changed
+    private boolean shared;
+    private Mark[] marks = new Mark[16];
+    private int markCount;
+    // the marks up to gapStart hold their offset, the marks after it hold
+    // their offset + gapLength, see Mark.getOffset
+    private long gapStart;
+    private long gapLength = GAP;
+    private static final long GAP = 1L << 48;
+    private final ReferenceQueue<StickyPosition> queue =
+            new ReferenceQueue<StickyPosition>();
+    private int unusedMarks;
+
+    /**
+     * Creates a content with the given text.  The text must not change.
+     */
+    PieceContent(CharSequence original) {
+        this.original = original;
+        if (original.length() > 0) {
+            addPiece(0, 0, original.length());
+        }
+        // all contents end with a newline
+        length = original.length();
+        insert(length, "\n");
+    }
+
+    /**
+     * Returns the text this content was created with
+     */
+    CharSequence getOriginal() {
+        return original;
+    }
+
+    @Override
+    public synchronized Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        while (queue.poll() != null) {
+            unusedMarks++;
+        }
+        if (unusedMarks > Math.max(5, markCount / 10)) {
+            removeUnusedMarks();
+        }
+        long index = (offset <= gapStart) ? offset : offset + gapLength;
+        int i = findMark(index);
+        for (int j = i; j < markCount && marks[j].index == index; j++) {
+            StickyPosition position = marks[j].get();
+            if (position != null && marks[j].saves == 0) {
+                return position;
+            }
+        }
+        if (markCount == marks.length) {
+            marks = Arrays.copyOf(marks, markCount * 2);
+        }
+        System.arraycopy(marks, i, marks, i + 1, markCount - i);
+        markCount++;
+        StickyPosition position = new StickyPosition();
+        marks[i] = new Mark(position, index);
+        position.mark = marks[i];
+        return position;
+    }
+
+    /*
+     * Drops the marks of the positions that are no longer used
+     */
+    private void removeUnusedMarks() {
+        while (queue.poll() != null) {
+            // all are dropped below
+        }
+        int n = 0;
+        for (int i = 0; i < markCount; i++) {
+            if (marks[i].get() != null) {
+                marks[n++] = marks[i];
+            }
+        }
+        Arrays.fill(marks, n, markCount, null);
+        markCount = n;
+        unusedMarks = 0;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public synchronized UndoableEdit insertString(int where, String str)
+            throws BadLocationException {
+        if (where < 0 || where >= length) {
+            throw new BadLocationException("Invalid insert", length);
+        }
+        int start = addedLength;
+        insert(where, str);
+        return new InsertUndo(where, start, str.length());
+    }
+
+    @Override
+    public synchronized UndoableEdit remove(int where, int nitems)
+            throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length) {
+            throw new BadLocationException("Invalid remove", length);
+        }
+        Pieces removed = getPieces(where, nitems);
+        SavedMarks saved = saveMarks(where, where + nitems);
+        delete(where, nitems);
+        return new RemoveUndo(where, removed, saved);
+    }
+
+    @Override
+    public synchronized String getString(int where, int len) throws BadLocationException {
+        checkRange(where, len);
+        char[] chars = new char[len];
+        copy(where, len, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Puts the chars from where into the segment.  With a partial return
+     * only the chars of the first piece are returned, which does not copy
+     * them if they were inserted, and at most CHUNK chars otherwise.
+     */
+    @Override
+    public synchronized void getChars(int where, int len, Segment txt)
+            throws BadLocationException {
+        checkRange(where, len);
+        if (len > 0 && txt.isPartialReturn()) {
+            int i = findPiece(where);
+            len = Math.min(len, offsets[i] + lengths[i] - where);
+            if (starts[i] >= 0) {
+                // the original text is copied, in chunks
+                len = Math.min(len, CHUNK);
+            } else {
+                txt.array = added;
+                txt.offset = -starts[i] - 1 + where - offsets[i];
+                txt.count = len;
+                return;
+            }
+        }
+        char[] chars = new char[len];
+        copy(where, len, chars, 0);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    private void checkRange(int where, int len) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length) {
+            throw new BadLocationException("Invalid range", length);
+        }
+    }
+
+    /*
+     * Copies len chars from where into dst
+     */
+    private void copy(int where, int len, char[] dst, int dstOffset) {
+        new Snapshot(this, where, where + len).getChars(0, len, dst, dstOffset);
+    }
+
+    /**
+     * Returns the text as it is now, without the newline all contents end
+     * with.  The snapshot does not change when the content is edited, and
+     * can be read by any thread.  This takes constant time: the pieces are
+     * only copied by the next edit.
+     */
+    synchronized Snapshot getSnapshot() {
+        shared = true;
+        return new Snapshot(this, 0, length - 1);
+    }
+
+    /*
+     * Copies the pieces if a snapshot uses them, before they are changed
+     */
+    private void unshare() {
+        if (shared) {
+            offsets = offsets.clone();
+            starts = starts.clone();
+            lengths = lengths.clone();
+            shared = false;
+        }
+    }
+
+    private void insert(int where, String str) {
+        int n = str.length();
+        if (n == 0) {
+            return;
+        }
+        if (addedLength + n > added.length) {
+            added = Arrays.copyOf(added, Math.max(addedLength + n, added.length * 2));
+        }
+        str.getChars(0, n, added, addedLength);
+        int start = -addedLength - 1;
+        addedLength += n;
+        insert(where, new Pieces(new int[] {start}, new int[] {n}, n));
+    }
+
+    /*
+     * Inserts the given pieces at where
+     */
+    private void insert(int where, Pieces pieces) {
+        if (pieces.length == 0) {
+            return;
+        }
+        unshare();
+        int i = (where == length) ? count : findPiece(where);
+        int first = i;
+        int k = pieces.starts.length;
+        if (k == 1 && i > 0 && where == offsets[i - 1] + lengths[i - 1] &&
+                starts[i - 1] < 0 && starts[i - 1] - lengths[i - 1] == pieces.starts[0]) {
+            // typing at the end of the last insert just grows its piece
+            lengths[i - 1] += pieces.length;
+        } else {
+            if (i < count && where > offsets[i]) {
+                // split the piece
+                int head = where - offsets[i];
+                int tail = starts[i] + ((starts[i] < 0) ? -head : head);
+                int tailLength = lengths[i] - head;
+                lengths[i] = head;
+                addPiece(i + 1, tail, tailLength);
+                i++;
+            }
+            for (int p = 0; p < k; p++) {
+                addPiece(i + p, pieces.starts[p], pieces.lengths[p]);
+            }
+        }
+        length += pieces.length;
+        updateOffsets(first);
+        updateMarksForInsert(where, pieces.length);
+    }
+
+    /*
+     * Returns the pieces of the text from where to where + n
+     */
+    private Pieces getPieces(int where, int n) {
+        int i = findPiece(where);
+        int j = i;
+        while (j < count && offsets[j] < where + n) {
+            j++;
+        }
+        int[] s = Arrays.copyOfRange(starts, i, j);
+        int[] l = Arrays.copyOfRange(lengths, i, j);
+        if (n > 0) {
+            int head = where - offsets[i];
+            s[0] += (s[0] < 0) ? -head : head;
+            l[0] -= head;
+            l[j - i - 1] -= offsets[j - 1] + lengths[j - 1] - (where + n);
+        }
+        return new Pieces(s, l, n);
+    }
+
+    private void delete(int where, int n) {
+        if (n == 0) {
+            return;
+        }
+        unshare();
+        int i = findPiece(where);
+        int end = where + n;
+        int head = where - offsets[i];
+        if (head > 0) {
+            // keep the start of the first piece
+            int pieceEnd = offsets[i] + lengths[i];
+            if (end < pieceEnd) {
+                // all is removed from within this piece: split it
+                int skip = end - offsets[i];
+                int tail = starts[i] + ((starts[i] < 0) ? -skip : skip);
+                lengths[i] = head;
+                addPiece(i + 1, tail, pieceEnd - end);
+                length -= n;
+                updateOffsets(i);
+                updateMarksForRemove(where, n);
+                return;
+            }
+            lengths[i] = head;
+            i++;
+        }
+        // drop the pieces that are removed completely, and cut the last one
+        int j = i;
+        while (j < count && offsets[j] + lengths[j] <= end) {
+            j++;
+        }
+        if (j < count && offsets[j] < end) {
+            int cut = end - offsets[j];
+            starts[j] += (starts[j] < 0) ? -cut : cut;
+            lengths[j] -= cut;
+        }
+        removePieces(i, j);
+        length -= n;
+        updateOffsets(Math.max(i - 1, 0));
+        updateMarksForRemove(where, n);
+    }
+
+    private int findPiece(int where) {
+        return findPiece(offsets, count, where);
+    }
+
+    /*
+     * Returns the index of the piece holding the char at where
+     */
+    private static int findPiece(int[] offsets, int count, int where) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= where) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private void addPiece(int index, int start, int n) {
+        if (count == starts.length) {
+            int capacity = count * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        System.arraycopy(offsets, index, offsets, index + 1, count - index);
+        System.arraycopy(starts, index, starts, index + 1, count - index);
+        System.arraycopy(lengths, index, lengths, index + 1, count - index);
+        starts[index] = start;
+        lengths[index] = n;
+        count++;
+    }
+
+    private void removePieces(int from, int to) {
+        System.arraycopy(offsets, to, offsets, from, count - to);
+        System.arraycopy(starts, to, starts, from, count - to);
+        System.arraycopy(lengths, to, lengths, from, count - to);
+        count -= to - from;
+    }
+
+    /*
+     * Recomputes the offsets of the pieces from the given index on
+     */
+    private void updateOffsets(int from) {
+        int offset = (from == 0) ? 0 : offsets[from - 1] + lengths[from - 1];
+        for (int i = from; i < count; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+    }
+
+    /*
+     * Returns the index of the first mark with at least the given index
+     */
+    private int findMark(long index) {
+        int lo = 0;
+        int hi = markCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (marks[mid].index < index) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Moves the gap to where, so the marks before split are before it and
+     * the others after it.  Only the marks between the old and the new gap
+     * are changed.
+     */
+    private void moveGap(int where, int split) {
+        int g = findMark(gapStart + 1);
+        for (int i = g - 1; i >= 0 && marks[i].index >= split; i--) {
+            marks[i].index += gapLength;
+        }
+        for (int i = g; i < markCount && marks[i].index - gapLength < split; i++) {
+            marks[i].index -= gapLength;
+        }
+        gapStart = where;
+    }
+
+    /*
+     * Like StringContent, positions at the insert move with the text after
+     * it, except at offset 0
+     */
+    private void updateMarksForInsert(int offset, int n) {
+        moveGap(offset, Math.max(offset, 1));
+        if (gapLength - n < 1) {
+            // never happens for real, the gap is that large
+            for (int i = findMark(gapStart + 1); i < markCount; i++) {
+                marks[i].index += GAP - gapLength;
+            }
+            gapLength = GAP;
+        }
+        gapStart += n;
+        gapLength -= n;
+    }
+
+    private void updateMarksForRemove(int offset, int n) {
+        moveGap(offset, offset);
+        long end = gapStart + gapLength + n;
+        for (int i = findMark(gapStart + 1); i < markCount && marks[i].index < end; i++) {
+            marks[i].index = end;
+        }
+        gapLength += n;
+    }
+
+    /**
+     * The text of a PieceContent from one offset to another, at the time the
+     * snapshot was taken.
+     */
+    static final class Snapshot implements CharSequence {
+
+        private final CharSequence original;
+        private final char[] added;
+        private final int[] offsets;
+        private final int[] starts;
+        private final int[] lengths;
+        private final int count;
+        private final int from;
+        private final int to;
+        // the piece of the last char read, so reading chars in order does
+        // not search the pieces.  Races only cost a search.
+        private int piece;
+
+        private Snapshot(PieceContent c, int from, int to) {
+            this(c.original, c.added, c.offsets, c.starts, c.lengths, c.count, from, to);
+        }
+
+        private Snapshot(CharSequence original, char[] added, int[] offsets,
+                int[] starts, int[] lengths, int count, int from, int to) {
+            this.original = original;
+            this.added = added;
+            this.offsets = offsets;
+            this.starts = starts;
+            this.lengths = lengths;
+            this.count = count;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            int pos = from + index;
+            int i = piece;
+            if (pos < offsets[i] || pos >= offsets[i] + lengths[i]) {
+                i = findPiece(offsets, count, pos);
+                piece = i;
+            }
+            int start = starts[i];
+            return (start < 0) ? added[-start - 1 + pos - offsets[i]] :
+                    original.charAt(start + pos - offsets[i]);
+        }
+
+        @Override
+        public Snapshot subSequence(int start, int end) {
+            if (start < 0 || end > to - from || start > end) {
+                throw new IndexOutOfBoundsException("Range: " + start + "-" + end);
+            }
+            return new Snapshot(original, added, offsets, starts, lengths, count,
+                    from + start, from + end);
+        }
+
+        /**
+         * Copies the chars from start to end into dst at the given offset,
+         * like String.getChars
+         */
+        void getChars(int start, int end, char[] dst, int dstOffset) {
+            int where = from + start;
+            int len = end - start;
+            int i = findPiece(offsets, count, where);
+            while (len > 0) {
+                int skip = where - offsets[i];
+                int n = Math.min(len, lengths[i] - skip);
+                int s = starts[i];
+                if (s < 0) {
+                    System.arraycopy(added, -s - 1 + skip, dst, dstOffset, n);
+                } else if (original instanceof MappedText) {
+                    ((MappedText) original).getChars(s + skip, s + skip + n, dst, dstOffset);
+                } else if (original instanceof String) {
+                    ((String) original).getChars(s + skip, s + skip + n, dst, dstOffset);
+                } else {
+                    for (int k = 0; k < n; k++) {
+                        dst[dstOffset + k] = original.charAt(s + skip + k);
+                    }
+                }
+                where += n;
+                dstOffset += n;
+                len -= n;
+                i++;
+            }
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[to - from];
+            getChars(0, chars.length, chars, 0);
+            return new String(chars);
+        }
+    }
+
+    /*
+     * Remembers the marks from where to end, before that text is removed.
+     * Like StringContent, undo puts them back where they were.
+     */
+    private SavedMarks saveMarks(int where, int end) {
+        moveGap(where, where);
+        int from = findMark(where + gapLength);
+        int to = findMark(end + gapLength + 1);
+        SavedMarks saved = new SavedMarks(Arrays.copyOfRange(marks, from, to));
+        for (int i = 0; i < saved.marks.length; i++) {
+            saved.marks[i].saves++;
+            saved.offsets[i] = saved.marks[i].getOffset();
+        }
+        return saved;
+    }
+
+    /*
+     * Puts the saved marks back, after the text from where to end was
+     * inserted again
+     */
+    private void restoreMarks(SavedMarks saved, int where, int end) {
+        moveGap(where, where);
+        for (int i = 0; i < saved.marks.length; i++) {
+            Mark mark = saved.marks[i];
+            mark.saves--;
+            int offset = mark.getOffset();
+            if (offset >= where && offset <= end) {
+                mark.index = saved.offsets[i] + gapLength;
+            }
+        }
+        // the marks put back are in the range, keep it sorted
+        Arrays.sort(marks, findMark(where + gapLength), findMark(end + gapLength + 1));
+    }
+
+    /**
+     * Pieces of text taken out of the content, which can be put back
+     */
+    private static final class Pieces {
+
+        final int[] starts;
+        final int[] lengths;
+        final int length;
+
+        Pieces(int[] starts, int[] lengths, int length) {
+            this.starts = starts;
+            this.lengths = lengths;
+            this.length = length;
+        }
+    }
+
+    private static final class SavedMarks {
+
+        final Mark[] marks;
+        final int[] offsets;
+
+        SavedMarks(Mark[] marks) {
+            this.marks = marks;
+            this.offsets = new int[marks.length];
+        }
+    }
+
+    /**
+     * The Position handed out for a Mark.  The mark is dropped once this is
+     * no longer used.
+     */
+    private static final class StickyPosition implements Position {
+
+        private Mark mark;
+
+        @Override
+        public int getOffset() {
+            return mark.getOffset();
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    private final class Mark extends WeakReference<StickyPosition>
+            implements Comparable<Mark> {
+
+        private long index;
+        // the number of removes it was saved by, so undo can move it apart
+        // from other marks
+        private int saves;
+
+        private Mark(StickyPosition position, long index) {
+            super(position, queue);
+            this.index = index;
+        }
+
+        int getOffset() {
+            long i = index;
+            return (int) ((i > gapStart) ? i - gapLength : i);
+        }
+
+        @Override
+        public int compareTo(Mark other) {
+            return (index < other.index) ? -1 : ((index == other.index) ? 0 : 1);
+        }
+    }
+
+    private final class InsertUndo extends AbstractUndoableEdit {
+
+        private final int offset;
+        // the text in added
+        private final int start;
+        private final int length;
+        private SavedMarks saved;
+
+        private InsertUndo(int offset, int start, int length) {
+            this.offset = offset;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            synchronized (PieceContent.this) {
+                if (offset + length >= PieceContent.this.length) {
+                    throw new CannotUndoException();
+                }
+                saved = saveMarks(offset, offset + length);
+                delete(offset, length);
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            synchronized (PieceContent.this) {
+                insert(offset, new Pieces(new int[] {-start - 1}, new int[] {length}, length));
+                restoreMarks(saved, offset, offset + length);
+                saved = null;
+            }
+        }
+    }
+
+    private final class RemoveUndo extends AbstractUndoableEdit {
+
+        private final int offset;
+        private final Pieces pieces;
+        private SavedMarks saved;
+
+        private RemoveUndo(int offset, Pieces pieces, SavedMarks saved) {
+            this.offset = offset;
+            this.pieces = pieces;
+            this.saved = saved;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            synchronized (PieceContent.this) {
+                insert(offset, pieces);
+                restoreMarks(saved, offset, offset + pieces.length);
+                saved = null;
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            synchronized (PieceContent.this) {
+                saved = saveMarks(offset, offset + pieces.length);
+                delete(offset, pieces.length);
+            }
+        }
+    }
+}
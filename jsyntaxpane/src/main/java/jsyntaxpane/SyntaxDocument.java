@@ -14,27 +14,43 @@
  */
 package jsyntaxpane;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
 import javax.swing.text.Element;
+import javax.swing.text.GapContent;
 import javax.swing.text.PlainDocument;
 import javax.swing.text.Segment;
 
 /**
  * A document that supports being highlighted.  The document maintains an
- * internal List of all the Tokens.  The Tokens are updated using
+ * internal List of all the Tokens, packed in a TokenStore.  The Tokens are updated using
  * a Lexer, passed to it during construction.
  * 
  * @author Ayman Al-Sairafi, Hanns Holger Rutz
@@ -44,70 +60,727 @@ public class SyntaxDocument extends PlainDocument {
     public static final String CAN_REDO = "can-redo";
 
 	Lexer lexer;
-	List<Token> tokens;
+	volatile TokenStore tokens;
+	Tokenizer tokenizer;
 	CompoundUndoManager undo;
+	private boolean incrementalParsing = true;
+	private boolean asynchronousParsing = false;
+	private boolean lazyParsing = false;
+	// with lazy parsing, how far the views want the tokens
+	private int parseWanted = 0;
+	private Timer lazyTimer;
+	private volatile int version = 0;
+	private volatile int tokensVersion = 0;
+	// incremented when all tokens are parsed again, see getParseCount
+	private int parseCount = 0;
+	// the text whose tokens the last edit changed, see getDamageStart
+	private int damageStart = 0;
+	private int damageEnd = 0;
+	// edits not yet parsed in the background, guarded by parseLock
+	private final Object parseLock = new Object();
+	private boolean parseScheduled = false;
+	private boolean pendingFull = false;
+	private final EditRange pending = new EditRange();
+	// the length of the last insert or remove, see getLastEditLength
+	private int lastEditLength = 0;
+	// set while text is read, see beginLoad
+	private volatile boolean loading = false;
+	// set while text is read into an empty document, which is not undoable
+	private boolean quietLoad = false;
+	// nesting of runBatch, and the edits of the batch not yet parsed
+	private int batchDepth = 0;
+	private final EditRange batch = new EditRange();
+
+    /**
+     * Number of chars lazy parsing lexes ahead, and in each idle step
+     */
+    private static final int LAZY_CHUNK = 64 * 1024;
+    /**
+     * Number of chars write converts and writes at once
+     */
+    private static final int WRITE_CHUNK = 64 * 1024;
 
     private final PropertyChangeSupport propSupport;
     private boolean canUndoState = false;
     private boolean canRedoState = false;
 
 	public SyntaxDocument(Lexer lexer) {
-		super();
+		this(lexer, new GapContent());
+	}
+
+	/**
+	 * Creates a document that keeps its text in a piece table if snapshots
+	 * is true, so getSnapshot takes constant time instead of copying the
+	 * text.  Each edit then costs O(pieces + positions) instead of moving a
+	 * gap, so this is for documents read often from other threads.
+	 */
+	public SyntaxDocument(Lexer lexer, boolean snapshots) {
+		this(lexer, snapshots ? new PieceContent("") : new GapContent());
+	}
+
+	/**
+	 * Creates a document with the text of the given file, which is mapped
+	 * into memory instead of read.  Viewing a huge file then takes little
+	 * heap, besides the lines and the tokens.  Edits are kept apart from the
+	 * file, which is not changed.  The file must not be changed by others
+	 * while the document is used.  So it must not be written directly, as
+	 * with a FileWriter or JEditorPane.write: that truncates it before the
+	 * text is read, and both the edits and the text are lost.  Use write,
+	 * which replaces the file instead.
+	 * The document is parsed lazily (see setLazyParsing), as lexing all of
+	 * a huge file would take long and its tokens much heap.
+	 *
+	 * @param charset UTF-8 or a charset with one byte per char
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public SyntaxDocument(Lexer lexer, File file, Charset charset) throws IOException {
+		this(lexer, new PieceContent(new MappedText(file, charset)));
+		MappedText text = (MappedText) ((PieceContent) getContent()).getOriginal();
+		if (text.getLineSeparator() != null) {
+			putProperty(DefaultEditorKit.EndOfLineStringProperty, text.getLineSeparator());
+		}
+		createLines();
+		lazyParsing = true;
+		parse();
+	}
+
+	private SyntaxDocument(Lexer lexer, Content content) {
+		super(content);
 		putProperty(PlainDocument.tabSizeAttribute, 4);
 		this.lexer  = lexer;
+		tokenizer   = new Tokenizer(lexer);
 		undo        = new CompoundUndoManager(this);    // Listen for undo and redo events
         propSupport = new PropertyChangeSupport(this);
 	}
 
 	/*
-	 * Parse the entire document and return list of tokens that do not already
-	 * exist in the tokens list.  There may be overlaps, and replacements,
-	 * which we will cleanup later.
-	 *
-	 * @return list of tokens that do not exist in the tokens field
+	 * Creates the elements of the lines of text the content had before it
+	 * was used for this document.  PlainDocument only creates them for
+	 * text that is inserted.
 	 */
-	private void parse() {
-		// if we have no lexer, then we must have no tokens...
-		if (lexer == null) {
-			tokens = null;
-			return;
-		}
-		List<Token> toks = new ArrayList<Token>(getLength() / 10);
-		long ts = System.nanoTime();
-		int len = getLength();
+	private void createLines() {
+		writeLock();
 		try {
+			BranchElement map = (BranchElement) getDefaultRootElement();
+			List<Element> lines = new ArrayList<Element>();
 			Segment seg = new Segment();
-			getText(0, getLength(), seg);
-			lexer.parse(seg, 0, toks);
+			seg.setPartialReturn(true);
+			int length = getContent().length();
+			int start = 0;
+			int pos = 0;
+			while (pos < length) {
+				getContent().getChars(pos, length - pos, seg);
+				for (int i = 0; i < seg.count; i++) {
+					if (seg.array[seg.offset + i] == '\n') {
+						lines.add(createLeafElement(map, null, start, pos + i + 1));
+						start = pos + i + 1;
+					}
+				}
+				pos += seg.count;
+			}
+			map.replace(0, map.getElementCount(), lines.toArray(new Element[lines.size()]));
 		} catch (BadLocationException ex) {
-			log.log(Level.SEVERE, null, ex);
+			throw new IllegalStateException(ex);
 		} finally {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest(String.format("Parsed %d in %d ms, giving %d tokens\n",
-					len, (System.nanoTime() - ts) / 1000000, toks.size()));
+			writeUnlock();
+		}
+	}
+
+	/*
+	 * Parse the entire document.  With asynchronous parsing this is only
+	 * scheduled.
+	 */
+	private void parse() {
+		if (asynchronousParsing) {
+			synchronized (parseLock) {
+				pendingFull = true;
+				scheduleParse();
 			}
+			return;
+		}
+		tokenizer.parse(Tokenizer.textOf(this), getParseLimit(0));
+		tokens = tokenizer.getTokens();
+		tokensVersion = version;
+		parseCount++;
+		startLazyParsing();
+	}
+
+	/*
+	 * Updates the tokens after <code>removed</code> chars at offset were
+	 * replaced by <code>inserted</code> chars.  In a batch the edit is only
+	 * merged with the other edits of the batch, see runBatch.
+	 */
+	private void parse(int offset, int removed, int inserted) {
+		version++;
+		damageStart = damageEnd = offset;
+		if (loading) {
+			return;
+		}
+		if (batchDepth > 0) {
+			batch.add(offset, removed, inserted);
+			moveTokens(offset, removed, inserted);
+			return;
+		}
+		parseEdit(offset, removed, inserted);
+	}
+
+	/*
+	 * Keeps the tokens in step with an edit of a batch until the batch is
+	 * parsed, so the listeners of the edit do not see tokens of other text:
+	 * the tokens after the edit are moved, and those it changed are
+	 * dropped.  The Tokenizer parses the batch from the tokens before it,
+	 * so its tokens are copied first.
+	 */
+	private void moveTokens(int offset, int removed, int inserted) {
+		TokenStore toks = tokens;
+		if (toks == null) {
+			return;
+		}
+		if (toks == tokenizer.getTokens()) {
+			toks = new TokenStore(toks);
 			tokens = toks;
 		}
+		// the tokens ending after offset and starting before the end of
+		// the removed text, or around offset for an insert
+		int first = toks.getIndexBefore(offset);
+		if (first < 0 || toks.getEnd(first) <= offset) {
+			first++;
+		}
+		int last = first;
+		while (last < toks.size() && toks.getStart(last) < offset + removed) {
+			last++;
+		}
+		if (last == first && first < toks.size() && toks.getStart(first) < offset) {
+			last++;
+		}
+		toks.removeRange(first, last);
+		toks.shift(first, inserted - removed);
+	}
+
+	/*
+	 * Parses the edit now.  With asynchronous parsing the edit is merged
+	 * with the ones not yet parsed, and a background parse is scheduled.
+	 */
+	private void parseEdit(int offset, int removed, int inserted) {
+		if (asynchronousParsing) {
+			synchronized (parseLock) {
+				pending.add(offset, removed, inserted);
+				scheduleParse();
+			}
+			return;
+		}
+		tokenizer.parse(Tokenizer.textOf(this), offset, removed, inserted,
+			getParseLimit(offset));
+		tokens = tokenizer.getTokens();
+		tokensVersion = version;
+		damageStart = Math.min(tokenizer.getDamageStart(), getLength());
+		damageEnd = Math.min(tokenizer.getDamageEnd(), getLength());
+		startLazyParsing();
+	}
+
+	/*
+	 * Returns where a parse starting at pos can stop
+	 */
+	private int getParseLimit(int pos) {
+		if (!lazyParsing) {
+			return Integer.MAX_VALUE;
+		}
+		return Math.max(pos, parseWanted) + LAZY_CHUNK;
+	}
+
+	/*
+	 * With lazy parsing, starts lexing the rest of the document in chunks
+	 * on the EDT while it is idle.
+	 */
+	private void startLazyParsing() {
+		if (!lazyParsing || tokenizer.getLexedTo() >= getLength()) {
+			return;
+		}
+		if (lazyTimer == null) {
+			lazyTimer = new Timer(10, new ActionListener() {
+
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					writeLock();
+					try {
+						if (lazyParsing && !asynchronousParsing) {
+							tokenizer.lexTo(Tokenizer.textOf(SyntaxDocument.this),
+								tokenizer.getLexedTo() + LAZY_CHUNK);
+							tokens = tokenizer.getTokens();
+						}
+						if (!lazyParsing || asynchronousParsing ||
+							tokenizer.getLexedTo() >= getLength()) {
+							lazyTimer.stop();
+						}
+					} finally {
+						writeUnlock();
+					}
+				}
+			});
+		}
+		lazyTimer.start();
+	}
+
+	/**
+	 * With lazy parsing, makes sure the tokens of the text up to pos are
+	 * parsed.  The views call this for the text they show.  Otherwise all
+	 * tokens are parsed anyway, and this does nothing.
+	 * This takes the write lock, so it must not be called holding the read
+	 * lock.
+	 */
+	public void parseUpTo(int pos) {
+		if (!lazyParsing || asynchronousParsing || loading || batchDepth > 0) {
+			return;
+		}
+		parseWanted = pos;
+		if (tokenizer.getLexedTo() >= Math.min(pos, getLength())) {
+			return;
+		}
+		// we may be called from a listener while the document is changed
+		boolean lock = getCurrentWriter() != Thread.currentThread();
+		if (lock) {
+			writeLock();
+		}
+		try {
+			tokenizer.lexTo(Tokenizer.textOf(this), pos + LAZY_CHUNK);
+			tokens = tokenizer.getTokens();
+		} finally {
+			if (lock) {
+				writeUnlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the length of the text at the start of the document whose
+	 * tokens are parsed.  Only with lazy parsing this can be less than the
+	 * length of the document.
+	 */
+	public int getParsedLength() {
+		if (!lazyParsing || asynchronousParsing) {
+			return getLength();
+		}
+		return Math.min(tokenizer.getLexedTo(), getLength());
+	}
+
+	/*
+	 * Must be called holding parseLock
+	 */
+	private void scheduleParse() {
+		if (!parseScheduled) {
+			parseScheduled = true;
+			getParser().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					parseInBackground();
+				}
+			});
+		}
+	}
+
+	/*
+	 * Runs on the parser thread: parses the pending edits on a copy of the
+	 * text, until there are none left.  Each parse publishes a snapshot of
+	 * the tokens on the EDT.
+	 */
+	private void parseInBackground() {
+		try {
+			while (true) {
+				final Tokenizer t;
+				final int v;
+				boolean full;
+				int start;
+				int removed;
+				int inserted;
+				CharSequence text;
+				readLock();
+				try {
+					synchronized (parseLock) {
+						t = tokenizer;
+						if (!asynchronousParsing || (!pendingFull && pending.isEmpty())) {
+							parseScheduled = false;
+							return;
+						}
+						full = pendingFull;
+						start = pending.start;
+						removed = pending.oldEnd - pending.start;
+						inserted = pending.newEnd - pending.start;
+						pendingFull = false;
+						pending.clear();
+					}
+					v = version;
+					text = getSnapshot();
+				} finally {
+					readUnlock();
+				}
+				if (full) {
+					t.parse(Tokenizer.textOf(text));
+				} else {
+					t.parse(Tokenizer.textOf(text), start, removed, inserted, Integer.MAX_VALUE);
+				}
+				final TokenStore snapshot = (t.getTokens() == null) ? null : new TokenStore(t.getTokens());
+				final int damageStart = t.getDamageStart();
+				final int damageEnd = t.getDamageEnd();
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						publishTokens(t, snapshot, v, damageStart, damageEnd);
+					}
+				});
+			}
+		} catch (RuntimeException ex) {
+			log.log(Level.SEVERE, "Error parsing " + this, ex);
+			synchronized (parseLock) {
+				// the edits taken were not parsed, and the tokens of the
+				// tokenizer may be wrong: parse all of it with the next edit
+				pendingFull = true;
+				parseScheduled = false;
+			}
+		}
+	}
+
+	/*
+	 * Runs on the EDT: makes the snapshot of the tokens parsed by t the
+	 * current tokens, unless parsing was switched since, and repaints the
+	 * text whose tokens changed.
+	 */
+	private void publishTokens(Tokenizer t, TokenStore snapshot, int v,
+		int damageStart, int damageEnd) {
+		writeLock();
+		try {
+			if (t != tokenizer || v < tokensVersion) {
+				return;
+			}
+			tokens = snapshot;
+			tokensVersion = v;
+			// there may be newer edits, their snapshot will follow
+			fireTokensChanged(Math.min(damageStart, getLength()),
+				Math.min(damageEnd, getLength()));
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	/*
+	 * Tells the views the tokens of the text from start to end changed
+	 * after its edits were notified
+	 */
+	private void fireTokensChanged(int start, int end) {
+		DefaultDocumentEvent e = new DefaultDocumentEvent(start, end - start,
+			DocumentEvent.EventType.CHANGE);
+		e.end();
+		// not our fireChangedUpdate, which would parse again
+		super.fireChangedUpdate(e);
+	}
+
+	/**
+	 * The range of text changed by several edits: from start to oldEnd in
+	 * the text before the edits, and from start to newEnd after them.
+	 */
+	private static final class EditRange {
+
+		int start = -1;
+		int oldEnd;
+		int newEnd;
+
+		/**
+		 * Adds an edit replacing removed chars at offset by inserted chars
+		 */
+		void add(int offset, int removed, int inserted) {
+			if (start < 0) {
+				start = offset;
+				oldEnd = offset + removed;
+				newEnd = offset + inserted;
+			} else {
+				// the union of both edits, in old and in new positions
+				int end = Math.max(newEnd, offset + removed);
+				oldEnd += end - newEnd;
+				newEnd = end + inserted - removed;
+				start = Math.min(start, offset);
+			}
+		}
+
+		boolean isEmpty() {
+			return start < 0;
+		}
+
+		void clear() {
+			start = -1;
+		}
+	}
+
+	private static Executor parser;
+
+	/*
+	 * The one thread doing the background parsing of all documents
+	 */
+	private static synchronized Executor getParser() {
+		if (parser == null) {
+			parser = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SyntaxDocument Parser");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return parser;
+	}
+
+	/**
+	 * Suspends parsing until endLoad is called.  Reading text inserts it in
+	 * many chunks, and parsing the document after each of them would take
+	 * time quadratic in its length.  Until endLoad the tokens are those of
+	 * the text before.
+	 * Text read into an empty document fires no UndoableEditEvents and
+	 * cannot be undone.  Text read into a document with text is undone in
+	 * one step, like a batch.
+	 */
+	void beginLoad() {
+		writeLock();
+		try {
+			loading = true;
+			quietLoad = getLength() == 0;
+			if (!quietLoad && batchDepth == 0) {
+				undo.beginGroup();
+			}
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	/**
+	 * Parses the document once after the text loaded since beginLoad.  If
+	 * the document was empty, the edits recorded before are discarded.
+	 */
+	void endLoad() {
+		writeLock();
+		try {
+			loading = false;
+			if (quietLoad) {
+				undo.discardAllEdits();
+			} else if (batchDepth == 0) {
+				undo.endGroup();
+			}
+			quietLoad = false;
+			parse();
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	/**
+	 * Runs the edits of the given Runnable as one: the document is parsed
+	 * once after all of them, and they are undone in one step.  The
+	 * document is write locked while the edits run, so other threads do not
+	 * see the text in between.  Batches can be nested.
+	 * The listeners are still notified of each edit, as the views must
+	 * follow the changes to the lines.  Until the batch ends, the tokens are
+	 * those of the text before it, moved with each edit, and there are no
+	 * tokens for the text the edits changed.  When the batch is parsed, a
+	 * change event is fired for the text whose tokens changed.
+	 */
+	public void runBatch(Runnable edits) {
+		writeLock();
+		try {
+			if (batchDepth++ == 0) {
+				undo.beginGroup();
+			}
+			try {
+				edits.run();
+			} finally {
+				if (--batchDepth == 0) {
+					undo.endGroup();
+					if (!batch.isEmpty()) {
+						parseEdit(batch.start, batch.oldEnd - batch.start,
+							batch.newEnd - batch.start);
+						batch.clear();
+						if (!asynchronousParsing) {
+							fireTokensChanged(damageStart, damageEnd);
+						}
+					}
+				}
+			}
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	@Override
+	protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+		if (undo.isCompactEdits() && !quietLoad) {
+			undo.textChanged(chng.getOffset(), "", getTextOf(chng));
+		}
+		super.insertUpdate(chng, attr);
+	}
+
+	@Override
+	protected void removeUpdate(DefaultDocumentEvent chng) {
+		if (undo.isCompactEdits() && !quietLoad) {
+			undo.textChanged(chng.getOffset(), getTextOf(chng), "");
+		}
+		super.removeUpdate(chng);
+	}
+
+	/*
+	 * Returns the text of the inserted text, or of the text to be removed
+	 */
+	private String getTextOf(DefaultDocumentEvent chng) {
+		try {
+			return getText(chng.getOffset(), chng.getLength());
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@Override
+	protected void fireUndoableEditUpdate(UndoableEditEvent e) {
+		if (!quietLoad && !undo.isReplaying()) {
+			super.fireUndoableEditUpdate(e);
+		}
 	}
 
 	@Override
 	protected void fireChangedUpdate(DocumentEvent e) {
-		parse();
+		parse(e.getOffset(), e.getLength(), e.getLength());
 		super.fireChangedUpdate(e);
 	}
 
 	@Override
 	protected void fireInsertUpdate(DocumentEvent e) {
-		parse();
+		lastEditLength = e.getLength();
+		parse(e.getOffset(), 0, e.getLength());
 		super.fireInsertUpdate(e);
 	}
 
 	@Override
 	protected void fireRemoveUpdate(DocumentEvent e) {
-		parse();
+		lastEditLength = e.getLength();
+		parse(e.getOffset(), e.getLength(), 0);
 		super.fireRemoveUpdate(e);
 	}
 
+	/**
+	 * Enables or disables incremental parsing.  When enabled (the default),
+	 * edits only re-lex the tokens around the edit instead of the whole
+	 * document.  This requires a lexer that can be resumed from a saved
+	 * state (a DefaultJFlexLexer), for other lexers the whole document is
+	 * parsed anyway.
+	 */
+	public void setIncrementalParsing(boolean incremental) {
+		this.incrementalParsing = incremental;
+		tokenizer.setIncremental(incremental);
+	}
+
+	public boolean isIncrementalParsing() {
+		return incrementalParsing;
+	}
+
+	/**
+	 * Enables or disables asynchronous parsing.  When enabled, edits do not
+	 * lex the document while it is locked, but are lexed on a background
+	 * thread.  Until that is done the tokens are those of an older version
+	 * of the document: getTokens, getTokenAt and the painting of the views
+	 * use the last snapshot of the tokens, see getTokensVersion.  When a new
+	 * snapshot is ready a change event is fired for the text whose tokens
+	 * changed, so the views repaint it.
+	 */
+	public void setAsynchronousParsing(boolean asynchronous) {
+		writeLock();
+		try {
+			if (asynchronous == asynchronousParsing) {
+				return;
+			}
+			// a new tokenizer, so a running background parse is dropped
+			tokenizer = new Tokenizer(lexer);
+			tokenizer.setIncremental(incrementalParsing);
+			synchronized (parseLock) {
+				asynchronousParsing = asynchronous;
+				pending.clear();
+				pendingFull = false;
+			}
+			parse();
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	public boolean isAsynchronousParsing() {
+		return asynchronousParsing;
+	}
+
+	/**
+	 * Enables or disables lazy parsing.  When enabled, only the tokens of
+	 * the text the views show (see parseUpTo) and a bit more are parsed
+	 * right away, so even for huge documents the first paint is fast.  The
+	 * rest is parsed in chunks while the EDT is idle.  Edits only need to
+	 * parse up to there too.
+	 * Lazy parsing requires a lexer that can be resumed (a DefaultJFlexLexer)
+	 * and is not used while parsing asynchronously.
+	 */
+	public void setLazyParsing(boolean lazy) {
+		writeLock();
+		try {
+			lazyParsing = lazy;
+			if (lazy) {
+				startLazyParsing();
+			} else if (!asynchronousParsing) {
+				tokenizer.lexTo(Tokenizer.textOf(this), Integer.MAX_VALUE);
+				tokens = tokenizer.getTokens();
+			}
+		} finally {
+			writeUnlock();
+		}
+	}
+
+	public boolean isLazyParsing() {
+		return lazyParsing;
+	}
+
+	/**
+	 * Returns the version of the text of this document, which is
+	 * incremented on each change.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the version of the text the current tokens were parsed from.
+	 * This is older than getVersion while an asynchronous parse is running.
+	 */
+	public int getTokensVersion() {
+		return tokensVersion;
+	}
+
+	/*
+	 * Returns how many times all tokens were parsed again, so views know
+	 * what they drew from the tokens is no longer valid
+	 */
+	int getParseCount() {
+		return parseCount;
+	}
+
+	/*
+	 * Returns the start of the text whose tokens the last edit changed.
+	 * Only valid when the tokens are those of the current text, see
+	 * getTokensVersion, while that edit is notified.
+	 */
+	int getDamageStart() {
+		return damageStart;
+	}
+
+	/*
+	 * Returns the end of the text whose tokens the last edit changed
+	 */
+	int getDamageEnd() {
+		return damageEnd;
+	}
+
 	/**
 	 * Replaces the token with the replacement string
 	 */
@@ -120,51 +793,45 @@ public class SyntaxDocument extends PlainDocument {
 	}
 
 	/**
-	 * This class is used to iterate over tokens between two positions
+	 * This class is used to iterate over tokens between two positions.
+	 * Like a TokenCursor, it is only valid until the document changes.
 	 */
 	class TokenIterator implements ListIterator<Token> {
 
+		// the tokens when the iterator was created, which an edit may
+		// update in place
+		final TokenStore toks = tokens;
 		int start;
 		int end;
 		int ndx = 0;
 
-		@SuppressWarnings("unchecked")
 		private TokenIterator(int start, int end) {
 			this.start = start;
 			this.end = end;
-			if (tokens != null && !tokens.isEmpty()) {
-				Token token = new Token(TokenType.COMMENT, start, end - start);
-				ndx = Collections.binarySearch((List) tokens, token);
-				// we will probably not find the exact token...
-				if (ndx < 0) {
-					// so, start from one before the token where we should be...
-					// -1 to get the location, and another -1 to go back..
-					ndx = (-ndx - 1 - 1 < 0) ? 0 : (-ndx - 1 - 1);
-					Token t = tokens.get(ndx);
-					// if the prev token does not overlap, then advance one
-					if (t.end() <= start) {
-						ndx++;
-					}
-
+			if (toks != null && !toks.isEmpty()) {
+				// start from the last token starting before start...
+				ndx = Math.max(toks.getIndexBefore(start), 0);
+				// if that token does not overlap, then advance one
+				if (toks.getEnd(ndx) <= start) {
+					ndx++;
 				}
 			}
 		}
 
 		@Override
 		public boolean hasNext() {
-			if (tokens == null) {
+			if (toks == null) {
 				return false;
 			}
-			if (ndx >= tokens.size()) {
+			if (ndx >= toks.size()) {
 				return false;
 			}
-			Token t = tokens.get(ndx);
-            return t.start < end;
+            return toks.getStart(ndx) < end;
         }
 
 		@Override
 		public Token next() {
-			return tokens.get(ndx++);
+			return toks.get(ndx++);
 		}
 
 		@Override
@@ -174,19 +841,18 @@ public class SyntaxDocument extends PlainDocument {
 
 		@Override
 		public boolean hasPrevious() {
-			if (tokens == null) {
+			if (toks == null) {
 				return false;
 			}
 			if (ndx <= 0) {
 				return false;
 			}
-			Token t = tokens.get(ndx);
-            return t.end() > start;
+            return toks.getEnd(ndx) > start;
         }
 
 		@Override
 		public Token previous() {
-			return tokens.get(ndx--);
+			return toks.get(ndx--);
 		}
 
 		@Override
@@ -225,25 +891,21 @@ public class SyntaxDocument extends PlainDocument {
 	 * found (whitespace skipped) or if the position is out of range:
 	 */
 	public Token getTokenAt(int pos) {
-		if (tokens == null || tokens.isEmpty() || pos > getLength()) {
+		TokenStore toks = tokens;
+		if (toks == null || toks.isEmpty() || pos > getLength()) {
 			return null;
 		}
-		Token tok = null;
-		Token tKey = new Token(TokenType.DEFAULT, pos, 1);
-		@SuppressWarnings("unchecked")
-		int ndx = Collections.binarySearch((List) tokens, tKey);
-		if (ndx < 0) {
-			// so, start from one before the token where we should be...
-			// -1 to get the location, and another -1 to go back..
-			ndx = (-ndx - 1 - 1 < 0) ? 0 : (-ndx - 1 - 1);
-			Token t = tokens.get(ndx);
-			if ((t.start <= pos) && (pos <= t.end())) {
-				tok = t;
-			}
-		} else {
-			tok = tokens.get(ndx);
+		int ndx = toks.getIndexBefore(pos);
+		// a single char token at pos is taken, otherwise the token ending
+		// at pos wins over the one starting there
+		if (ndx > 0 && toks.getStart(ndx) == pos && toks.getLength(ndx) != 1) {
+			ndx--;
+		}
+		ndx = Math.max(ndx, 0);
+		if ((toks.getStart(ndx) <= pos) && (pos <= toks.getEnd(ndx))) {
+			return toks.get(ndx);
 		}
-		return tok;
+		return null;
 	}
 
 	public Token getWordAt(int offs, Pattern p) {
@@ -274,14 +936,23 @@ public class SyntaxDocument extends PlainDocument {
         return word;
 	}
 
+	/**
+	 * Returns a cursor over the tokens of this document, positioned before
+	 * the first token.  The cursor is only valid until the document
+	 * changes, as the tokens it reads are then updated in place.
+	 */
+	public TokenCursor getTokenCursor() {
+		return new TokenCursor(tokens);
+	}
+
 	/**
 	 * Returns the token following the current token, or null
-	 * <b>This is an expensive operation, so do not use it to update the gui</b>
+	 * To visit many tokens use a TokenCursor.
 	 */
 	public Token getNextToken(Token tok) {
-		int n = tokens.indexOf(tok);
-		if ((n >= 0) && (n < (tokens.size() - 1))) {
-			return tokens.get(n + 1);
+		TokenCursor c = getTokenCursor();
+		if (c.seek(tok) && c.next()) {
+			return c.getToken();
 		} else {
 			return null;
 		}
@@ -289,12 +960,12 @@ public class SyntaxDocument extends PlainDocument {
 
 	/**
 	 * Returns the token prior to the given token, or null
-	 * <b>This is an expensive operation, so do not use it to update the gui</b>
+	 * To visit many tokens use a TokenCursor.
 	 */
 	public Token getPrevToken(Token tok) {
-		int n = tokens.indexOf(tok);
-		if ((n > 0) && (!tokens.isEmpty())) {
-			return tokens.get(n - 1);
+		TokenCursor c = getTokenCursor();
+		if (c.seek(tok) && c.previous()) {
+			return c.getToken();
 		} else {
 			return null;
 		}
@@ -305,7 +976,8 @@ public class SyntaxDocument extends PlainDocument {
 	 * A paired part has token.pairValue <> 0, and the paired token will
 	 * have the negative of t.pairValue.
 	 * This method properly handles nestings of same pairValues, but overlaps
-	 * are not checked.
+	 * are not checked.  The pairs are matched once after the tokens changed,
+	 * so this is a binary search.
 	 * if the document does not contain a paired token, then null is returned.
      *
 	 * @return the other pair's token, or null if nothing is found.
@@ -314,30 +986,11 @@ public class SyntaxDocument extends PlainDocument {
 		if (t == null || t.pairValue == 0) {
 			return null;
 		}
-		Token p = null;
-		int ndx = tokens.indexOf(t);
-		// w will be similar to a stack. The openners weght is added to it
-		// and the closers are subtracted from it (closers are already negative)
-		int w = t.pairValue;
-		int direction = (t.pairValue > 0) ? 1 : -1;
-		boolean done = false;
-		int v = Math.abs(t.pairValue);
-		while (!done) {
-			ndx += direction;
-			if (ndx < 0 || ndx >= tokens.size()) {
-				break;
-			}
-			Token current = tokens.get(ndx);
-			if (Math.abs(current.pairValue) == v) {
-				w += current.pairValue;
-				if (w == 0) {
-					p = current;
-					done = true;
-				}
-			}
+		TokenCursor c = getTokenCursor();
+		if (c.seek(t) && c.seekPair()) {
+			return c.getToken();
 		}
-
-		return p;
+		return null;
 	}
 
     // public boolean isDirty() { return dirty; }
@@ -369,12 +1022,20 @@ public class SyntaxDocument extends PlainDocument {
     }
 
 	/**
-	 * Performs an undo action, if possible
+	 * Performs an undo action, if possible.  The edits undone are parsed
+	 * once, as a batch (see runBatch): the listeners of each edit see the
+	 * tokens moved with it, and a change event follows once the batch is
+	 * parsed.
 	 */
 	public void doUndo() {
 		if (undo.canUndo()) {
-			undo.undo();
-			parse();
+			runBatch(new Runnable() {
+
+				@Override
+				public void run() {
+					undo.undo();
+				}
+			});
 		}
 	}
 
@@ -383,12 +1044,20 @@ public class SyntaxDocument extends PlainDocument {
     }
 
 	/**
-	 * Performs a redo action, if possible.
+	 * Performs a redo action, if possible.  The edits redone are parsed
+	 * once, as a batch (see runBatch): the listeners of each edit see the
+	 * tokens moved with it, and a change event follows once the batch is
+	 * parsed.
 	 */
 	public void doRedo() {
 		if (undo.canRedo()) {
-			undo.redo();
-			parse();
+			runBatch(new Runnable() {
+
+				@Override
+				public void run() {
+					undo.redo();
+				}
+			});
 		}
 	}
 
@@ -396,6 +1065,64 @@ public class SyntaxDocument extends PlainDocument {
         return canRedoState; // undo.canRedo();
     }
 
+	/**
+	 * Returns the length of the text inserted or removed by the last edit.
+	 * The undoable edit of an insert or remove follows its DocumentEvent,
+	 * so CompoundUndoManager can tell the text an edit keeps, even when the
+	 * edit is wrapped.
+	 */
+	int getLastEditLength() {
+		return lastEditLength;
+	}
+
+	/**
+	 * Limits the memory of the undoable edits to about the given number of
+	 * chars of inserted and removed text.  The oldest edits are discarded
+	 * when they keep more.  0 means no limit.
+	 * See CompoundUndoManager.setMemoryLimit
+	 */
+	public void setUndoMemoryLimit(int chars) {
+		undo.setMemoryLimit(chars);
+	}
+
+	/**
+	 * Keeps the undoable edits that do not fit in memory (see
+	 * setUndoMemoryLimit) in the given file, and the whole history when
+	 * closeUndoJournal is called.  Opening the same file for a document
+	 * with the text it was closed with brings back that history.
+	 * See CompoundUndoManager.openJournal
+	 */
+	public void openUndoJournal(File file) throws IOException {
+		undo.openJournal(file, getSnapshot());
+	}
+
+	/**
+	 * Writes the history to the journal, and closes it
+	 */
+	public void closeUndoJournal() throws IOException {
+		undo.closeJournal(getSnapshot());
+	}
+
+	/**
+	 * Keeps only the offset and the removed and inserted text of undoable
+	 * edits when enabled, see CompoundUndoManager.setCompactEdits
+	 */
+	public void setCompactUndo(boolean compact) {
+		undo.setCompactEdits(compact);
+	}
+
+	public boolean isCompactUndo() {
+		return undo.isCompactEdits();
+	}
+
+	/**
+	 * Returns the chars of inserted and removed text kept by the undoable
+	 * edits, which takes about twice as many bytes
+	 */
+	public long getUndoMemory() {
+		return undo.getRetainedChars();
+	}
+
     /**
      * Discards all undoable edits
      */
@@ -403,6 +1130,97 @@ public class SyntaxDocument extends PlainDocument {
         undo.discardAllEdits();
     }
 
+	/**
+	 * Returns the text of the document as it is now.  The text does not
+	 * change when the document is edited, and can be read without locking
+	 * the document, from any thread.  For documents with a piece table (see
+	 * SyntaxDocument(Lexer, boolean)) and mapped files, taking a snapshot
+	 * takes constant time and the next edit copies the list of pieces the
+	 * text is made of.  Otherwise the text is copied.
+	 */
+	public CharSequence getSnapshot() {
+		if (getContent() instanceof PieceContent) {
+			return ((PieceContent) getContent()).getSnapshot();
+		}
+		readLock();
+		try {
+			return getText(0, getLength());
+		} catch (BadLocationException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			readUnlock();
+		}
+	}
+
+	/**
+	 * Saves the text to the given file, with the line separator the text
+	 * was read with.  The text is written to a temporary file next to the
+	 * given one, which is then renamed over it, so the file is never left
+	 * half written.  This is the only safe way to save a document to the
+	 * file it maps (see SyntaxDocument(Lexer, File, Charset)): the document
+	 * keeps reading the replaced file, which the system keeps while it is
+	 * mapped.
+	 * Where a mapped file cannot be replaced, as on Windows, this fails and
+	 * the file is left as it was.
+	 * The text is written from a snapshot, so the document is not locked
+	 * while the file is written.
+	 *
+	 * @throws IOException if the file cannot be written or replaced
+	 */
+	public void write(File file, Charset charset) throws IOException {
+		CharSequence text = getSnapshot();
+		Object eol = getProperty(DefaultEditorKit.EndOfLineStringProperty);
+		String separator = (eol instanceof String) ? (String) eol : "\n";
+		file = file.getAbsoluteFile();
+		File temp = File.createTempFile("." + file.getName() + ".", ".tmp",
+			file.getParentFile());
+		boolean saved = false;
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(temp), charset));
+			try {
+				for (int pos = 0; pos < text.length(); pos += WRITE_CHUNK) {
+					String chunk = text.subSequence(pos,
+						Math.min(pos + WRITE_CHUNK, text.length())).toString();
+					int last = 0;
+					for (int i = chunk.indexOf('\n'); i >= 0; i = chunk.indexOf('\n', last)) {
+						out.write(chunk, last, i - last);
+						out.write(separator);
+						last = i + 1;
+					}
+					out.write(chunk, last, chunk.length() - last);
+				}
+			} finally {
+				out.close();
+			}
+			saved = temp.renameTo(file);
+			// renameTo does not replace files on some platforms, but the
+			// file we map must not be deleted before the new one is in place
+			if (!saved && !isMapping(file) && file.delete()) {
+				saved = temp.renameTo(file);
+			}
+			if (!saved) {
+				throw new IOException("Cannot replace " + file);
+			}
+		} finally {
+			if (!saved) {
+				temp.delete();
+			}
+		}
+	}
+
+	/*
+	 * Returns true if the text of the document is read from the given file
+	 */
+	private boolean isMapping(File file) throws IOException {
+		if (!(getContent() instanceof PieceContent)) {
+			return false;
+		}
+		CharSequence original = ((PieceContent) getContent()).getOriginal();
+		return original instanceof MappedText && ((MappedText) original)
+			.getFile().getCanonicalFile().equals(file.getCanonicalFile());
+	}
+
     /**
 	 * Returns a matcher that matches the given pattern on the entire document
      *
@@ -433,6 +1251,26 @@ public class SyntaxDocument extends PlainDocument {
 	 * @return matcher that <b>MUST</b> be offset by start to get the proper location within the document
 	 */
 	public Matcher getMatcher(Pattern pattern, int start, int length) {
+		if (!(getContent() instanceof PieceContent)) {
+			return getSegmentMatcher(pattern, start, length);
+		}
+		CharSequence text = getSnapshot();
+		if (text.length() == 0) {
+			return null;
+		}
+		if (start >= text.length()) {
+			return null;
+		}
+		if (start < 0) {
+			start = 0;
+		}
+		if (start + length > text.length()) {
+			length = text.length() - start;
+		}
+		return pattern.matcher(text.subSequence(start, start + length));
+	}
+
+	private Matcher getSegmentMatcher(Pattern pattern, int start, int length) {
 		Matcher matcher = null;
 		if (getLength() == 0) {
 			return null;
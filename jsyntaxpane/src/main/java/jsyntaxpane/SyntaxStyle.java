@@ -29,8 +29,12 @@ import javax.swing.text.Utilities;
  */
 public final class SyntaxStyle {
 
+    private static final Color HIGHLIGHT_COLOR = new Color(0xEEEEEE);
     private Color color;
     private int fontStyle;
+    // the font of this style derived from the last base font, see getFont
+    private Font baseFont;
+    private Font font;
 
     public SyntaxStyle() {
         super();
@@ -99,6 +103,28 @@ public final class SyntaxStyle {
         return color;
     }
 
+    /**
+     * Returns the font for this style, derived from the given base font.
+     * The font is kept until a base font of another family or size is
+     * given, so the same Font is returned for all the text painted with it.
+     */
+    public Font getFont(Font base) {
+        if (base != font && base != baseFont &&
+                (baseFont == null || !isSameFontExceptStyle(base, baseFont))) {
+            baseFont = base;
+            font = base.deriveFont(getFontStyle());
+        }
+        return font;
+    }
+
+    /*
+     * Fonts that only differ in their style derive the same fonts
+     */
+    private static boolean isSameFontExceptStyle(Font a, Font b) {
+        return a.getSize2D() == b.getSize2D() && a.getName().equals(b.getName()) &&
+                !a.isTransformed() && !b.isTransformed();
+    }
+
     /**
      * Draw text.  This can directly call the Utilities.drawTabbedText.
      * Sub-classes can override this method to provide any other decorations.
@@ -113,17 +139,24 @@ public final class SyntaxStyle {
      */
     public int drawText(Segment segment, int x, int y,
             Graphics graphics, TabExpander e, int startOffset) {
-        graphics.setFont(graphics.getFont().deriveFont(getFontStyle()));
-        FontMetrics fontMetrics = graphics.getFontMetrics();
-        int a = fontMetrics.getAscent();
-        int h = a + fontMetrics.getDescent();
-        int w = Utilities.getTabbedTextWidth(segment, fontMetrics, 0, e, startOffset);
-        int rX = x - 1;
-        int rY = y - a;
-        int rW = w + 2;
-        int rH = h;
+        Font f = getFont(graphics.getFont());
+        if (graphics.getFont() != f) {
+            graphics.setFont(f);
+        }
+        // the box is only needed for the highlight and border styles
+        int rX = 0, rY = 0, rW = 0, rH = 0;
+        if ((getFontStyle() & 0x18) != 0) {
+            // not kept, as they depend on the graphics drawn to
+            FontMetrics fm = graphics.getFontMetrics(f);
+            int a = fm.getAscent();
+            int w = Utilities.getTabbedTextWidth(segment, fm, 0, e, startOffset);
+            rX = x - 1;
+            rY = y - a;
+            rW = w + 2;
+            rH = a + fm.getDescent();
+        }
         if ((getFontStyle() & 0x10) != 0) {
-            graphics.setColor(Color.decode("#EEEEEE"));
+            graphics.setColor(HIGHLIGHT_COLOR);
             graphics.fillRect(rX, rY, rW, rH);
         }
         graphics.setColor(getColor());
@@ -33,7 +33,8 @@ import jsyntaxpane.util.JarServiceProvider;
  * styles into the default styles.
  *
  * Text is drawn by forwarding the drawText request to the SyntaxStyle for the
- * that matches the given TokenType
+ * that matches the given TokenType.  Each SyntaxStyle keeps the Font it
+ * derived from the editor font, so painting does not derive Fonts.
  * 
  * @author Ayman Al-Sairafi
  */
@@ -60,6 +61,9 @@ public class SyntaxStyles {
         }
     }
     Map<TokenType, SyntaxStyle> styles;
+    private int version = 0;
+    // the default styles read from the resource, see createInstance
+    private static Properties defaults;
     private static SyntaxStyles instance = createInstance();
     private static final Logger LOG = Logger.getLogger(SyntaxStyles.class.getName());
     private static SyntaxStyle DEFAULT_STYLE = new SyntaxStyle(Color.BLACK, Font.PLAIN);
@@ -71,11 +75,20 @@ public class SyntaxStyles {
      */
     private static SyntaxStyles createInstance() {
         SyntaxStyles syntaxstyles = new SyntaxStyles();
-        Properties styles = JarServiceProvider.readProperties(SyntaxStyles.class);
-        syntaxstyles.mergeStyles(styles);
+        syntaxstyles.mergeStyles(getDefaults());
         return syntaxstyles;
     }
 
+    /*
+     * The resource is only read once, as it does not change
+     */
+    private static synchronized Properties getDefaults() {
+        if (defaults == null) {
+            defaults = JarServiceProvider.readProperties(SyntaxStyles.class);
+        }
+        return defaults;
+    }
+
     /**
      * Returns the default singleton
      */
@@ -104,17 +117,23 @@ public class SyntaxStyles {
             styles = new HashMap<TokenType, SyntaxStyle>();
         }
         styles.put(type, style);
+        version++;
+    }
+
+    /**
+     * Returns a number that changes each time a style is put, so views
+     * can tell that what they painted is out of date.
+     */
+    int getVersion() {
+        return version;
     }
 
     /**
      * Returns the style for the given TokenType
      */
     public SyntaxStyle getStyle(TokenType type) {
-        if (styles != null && styles.containsKey(type)) {
-            return styles.get(type);
-        } else {
-            return DEFAULT_STYLE;
-        }
+        SyntaxStyle style = (styles == null) ? null : styles.get(type);
+        return (style == null) ? DEFAULT_STYLE : style;
     }
 
     /**
@@ -17,17 +17,28 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.PrintGraphics;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.Toolkit;
+import java.awt.print.PrinterGraphics;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
 import javax.swing.text.PlainView;
+import javax.swing.text.Position;
 import javax.swing.text.Segment;
+import javax.swing.text.View;
 import javax.swing.text.ViewFactory;
 import jsyntaxpane.util.Configuration;
 
@@ -36,27 +47,122 @@ public class SyntaxView extends PlainView {
     public static final String PROPERTY_RIGHT_MARGIN_COLOR = "RightMarginColor";
     public static final String PROPERTY_RIGHT_MARGIN_COLUMN = "RightMarginColumn";
     public static final String PROPERTY_SINGLE_COLOR_SELECT = "SingleColorSelect";
+    public static final String PROPERTY_LINE_CACHE_SIZE = "LineCacheSize";
     private static final Logger log = Logger.getLogger(SyntaxView.class.getName());
     private SyntaxStyle DEFAULT_STYLE = SyntaxStyles.getInstance().getStyle(TokenType.DEFAULT);
     private final boolean singleColorSelect;
     private final int rightMarginColumn;
     private final Color rightMarginColor;
     private final SyntaxStyles styles;
+    // the laid out lines, or null if LineCacheSize is 0
+    private final LineCache lineCache;
+    // the line being laid out for the cache, see drawRun
+    private LineCache.Line cacheLine;
+    private JViewport viewport;
+    private ChangeListener viewportListener;
+    // the run of text that looks the same, being collected by addToRun
+    private SyntaxStyle runStyle;
+    private int runStart;
+    private int runEnd;
+    private boolean runBlank;
+    private final Segment runSegment = new Segment();
+    // the number of parts and runs drawn since the last paint, logged at
+    // FINEST to see how many draw calls merging the parts saves
+    private int partCount;
+    private int runCount;
+    private int cachedCount;
 
     /**
-     * Construct a new view using the given configuration and prefix given
+     * Construct a new view using the given configuration and prefix given.
+     * The styles and settings read from the configuration are shared with
+     * the other views using it, see KitSettings.
      * 
      * @param element
      * @param config
      */
     public SyntaxView(Element element, Configuration config) {
         super(element);
-        singleColorSelect = config.getBoolean(PROPERTY_SINGLE_COLOR_SELECT, false);
-        rightMarginColor = new Color(config.getInteger(PROPERTY_RIGHT_MARGIN_COLOR,
-                0xFF7777));
-        rightMarginColumn = config.getInteger(PROPERTY_RIGHT_MARGIN_COLUMN,
-                0);
-        styles = SyntaxStyles.read(config);
+        KitSettings settings = KitSettings.get(config);
+        singleColorSelect = settings.singleColorSelect;
+        rightMarginColor = settings.rightMarginColor;
+        rightMarginColumn = settings.rightMarginColumn;
+        styles = settings.styles;
+        // in KB
+        int cacheSize = settings.lineCacheSize;
+        lineCache = (cacheSize > 0) ? new LineCache(cacheSize * 1024) : null;
+    }
+
+    /**
+     * With lazy parsing, the tokens of the visible text are parsed when the
+     * enclosing JScrollPane is scrolled, before the text is painted.
+     */
+    @Override
+    public void setParent(View parent) {
+        super.setParent(parent);
+        if (viewport != null) {
+            viewport.removeChangeListener(viewportListener);
+            viewport = null;
+        }
+        java.awt.Component host = getContainer();
+        if (parent != null && host instanceof JTextComponent &&
+                host.getParent() instanceof JViewport) {
+            final JTextComponent text = (JTextComponent) host;
+            viewport = (JViewport) host.getParent();
+            viewportListener = new ChangeListener() {
+
+                @Override
+                public void stateChanged(ChangeEvent e) {
+                    SyntaxDocument doc = (SyntaxDocument) getDocument();
+                    if (doc.isLazyParsing()) {
+                        // the last visible line, all lines are equally high
+                        Rectangle r = viewport.getViewRect();
+                        int h = text.getFontMetrics(text.getFont()).getHeight();
+                        Element map = getElement();
+                        int line = Math.min((r.y + r.height) / h, map.getElementCount() - 1);
+                        doc.parseUpTo(map.getElement(line).getEndOffset());
+                    }
+                }
+            };
+            viewport.addChangeListener(viewportListener);
+        }
+    }
+
+    /**
+     * With lazy parsing, text that is painted before its tokens are parsed
+     * is painted in the default style, and repainted once they are.  This
+     * happens when the view is not in a JScrollPane.
+     */
+    @Override
+    public void paint(Graphics g, Shape a) {
+        final SyntaxDocument doc = (SyntaxDocument) getDocument();
+        if (doc.isLazyParsing()) {
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = a.getBounds();
+            }
+            final int end = doc.getLineEndOffset(viewToModel(clip.x,
+                    clip.y + clip.height, a, new Position.Bias[1]));
+            if (doc.getParsedLength() < end) {
+                final java.awt.Component host = getContainer();
+                // we hold the read lock now, parseUpTo needs the write lock
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        doc.parseUpTo(end);
+                        host.repaint();
+                    }
+                });
+            }
+        }
+        partCount = 0;
+        runCount = 0;
+        cachedCount = 0;
+        super.paint(g, a);
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(String.format("Painted %d parts in %d runs, %d lines from the cache\n",
+                    partCount, runCount, cachedCount));
+        }
     }
 
     @Override
@@ -76,7 +182,20 @@ public class SyntaxView extends PlainView {
             graphics.drawLine(m_x, y, m_x, y - h);
         }
         try {
-            // Colour the parts
+            doc.getText(p0, p1 - p0, segment);
+            Element line = null;
+            if (isCacheable(doc, graphics, p0, p1)) {
+                line = getElement().getElement(getElement().getElementIndex(p0));
+                LineCache.Line cached = lineCache.get(line, p0, p1, x);
+                if (cached != null) {
+                    cachedCount++;
+                    return cached.draw((Graphics2D) graphics, p0, y, this);
+                }
+                cacheLine = new LineCache.Line(p0, p1, x);
+            }
+            // Colour the parts.  Neighbouring parts that look the same are
+            // merged into runs, which are drawn at once
+            runStyle = null;
             Iterator<Token> i = doc.getTokens(p0, p1);
             int start = p0;
             while (i.hasNext()) {
@@ -85,42 +204,132 @@ public class SyntaxView extends PlainView {
                 // should be starting (spaces not returned in tokens), then draw
                 // it in the default type
                 if (start < t.start) {
-                    doc.getText(start, t.start - start, segment);
-                    x = DEFAULT_STYLE.drawText(segment, x, y, graphics, this, start);
+                    x = addToRun(DEFAULT_STYLE, start, t.start, p0, x, y, graphics);
                 }
-                // t and s are the actual start and length of what we should
-                // put on the screen.  assume these are the whole token....
-                int l = t.length;
-                int s = t.start;
-                // ... unless the token starts before p0:
-                if (s < p0) {
-                    // token is before what is requested. adgust the length and s
-                    l -= (p0 - s);
-                    s = p0;
+                // draw the token, but only from p0 to p1
+                int s = Math.max(t.start, p0);
+                int e = Math.min(t.end(), p1);
+                if (s < e) {
+                    x = addToRun(styles.getStyle(t.type), s, e, p0, x, y, graphics);
                 }
-                // if token end (s + l is still the token end pos) is greater 
-                // than p1, then just put up to p1
-                if (s + l > p1) {
-                    l = p1 - s;
-                }
-                doc.getText(s, l, segment);
-                x = styles.drawText(segment, x, y, graphics, this, t);
                 start = t.end();
             }
             // now for any remaining text not tokenized:
             if (start < p1) {
-                doc.getText(start, p1 - start, segment);
-                x = DEFAULT_STYLE.drawText(segment, x, y, graphics, this, start);
+                x = addToRun(DEFAULT_STYLE, start, p1, p0, x, y, graphics);
+            }
+            x = drawRun(p0, x, y, graphics);
+            if (cacheLine != null) {
+                cacheLine.finish(x);
+                lineCache.put(line, cacheLine);
+                x = cacheLine.draw((Graphics2D) graphics, p0, y, this);
             }
         } catch (BadLocationException ex) {
             log.log(Level.SEVERE, "Requested: " + ex.offsetRequested(), ex);
         } finally {
+            cacheLine = null;
             graphics.setFont(saveFont);
             graphics.setColor(saveColor);
         }
         return x;
     }
 
+    /*
+     * Adds the text from start to end, which follows the current run, to
+     * that run if it looks the same.  Otherwise the run is drawn and a new
+     * run is started.  The line text from p0 is in getLineBuffer().
+     */
+    private int addToRun(SyntaxStyle style, int start, int end, int p0,
+            int x, int y, Graphics graphics) {
+        partCount++;
+        boolean blank = isBlank(getLineBuffer(), start - p0, end - p0);
+        if (runStyle != null) {
+            if (isSameLook(runStyle, style) ||
+                    (blank && isSameFont(runStyle, style))) {
+                // blanks have no colour, so they can join any run in their font
+                runEnd = end;
+                runBlank &= blank;
+                return x;
+            }
+            if (runBlank && isSameFont(runStyle, style)) {
+                runStyle = style;
+                runEnd = end;
+                runBlank = blank;
+                return x;
+            }
+            x = drawRun(p0, x, y, graphics);
+        }
+        runStyle = style;
+        runStart = start;
+        runEnd = end;
+        runBlank = blank;
+        return x;
+    }
+
+    /*
+     * Draws the current run, if any
+     */
+    private int drawRun(int p0, int x, int y, Graphics graphics) {
+        if (runStyle != null) {
+            Segment line = getLineBuffer();
+            runSegment.array = line.array;
+            runSegment.offset = line.offset + runStart - p0;
+            runSegment.count = runEnd - runStart;
+            if (cacheLine != null) {
+                x = cacheLine.add(runStyle, runSegment, x, (Graphics2D) graphics,
+                        this, runStart);
+            } else {
+                x = runStyle.drawText(runSegment, x, y, graphics, this, runStart);
+            }
+            runStyle = null;
+            runCount++;
+        }
+        return x;
+    }
+
+    /*
+     * Only whole lines whose tokens are parsed are cached, and not when
+     * printing, where text is laid out for the printer.  Nor while the
+     * tokens are those of older text, as they may not match the line.
+     */
+    private boolean isCacheable(SyntaxDocument doc, Graphics graphics, int p0, int p1) {
+        if (lineCache == null || !(graphics instanceof Graphics2D) ||
+                graphics instanceof PrintGraphics || graphics instanceof PrinterGraphics) {
+            return false;
+        }
+        Element line = getElement().getElement(getElement().getElementIndex(p0));
+        if (line.getStartOffset() != p0 ||
+                p1 != Math.min(doc.getLength(), line.getEndOffset()) ||
+                p1 > doc.getParsedLength() || doc.getTokensVersion() != doc.getVersion()) {
+            return false;
+        }
+        lineCache.validate(graphics.getFont(),
+                ((Graphics2D) graphics).getFontRenderContext(), doc.getParseCount(),
+                styles.getVersion());
+        return true;
+    }
+
+    private static boolean isBlank(Segment line, int from, int to) {
+        for (int i = line.offset + from; i < line.offset + to; i++) {
+            char c = line.array[i];
+            if (c != ' ' && c != '\t' && c != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Styles with a highlight or border (0x10 and 0x8) are drawn on their own
+     */
+    private static boolean isSameFont(SyntaxStyle a, SyntaxStyle b) {
+        return a.getFontStyle() == b.getFontStyle() && (a.getFontStyle() & 0x18) == 0;
+    }
+
+    private static boolean isSameLook(SyntaxStyle a, SyntaxStyle b) {
+        return isSameFont(a, b) && a.getColor().equals(b.getColor());
+    }
+
     @Override
     protected int drawSelectedText(Graphics graphics, int x, int y, int p0, int p1)
             throws BadLocationException {
@@ -150,10 +359,49 @@ public class SyntaxView extends PlainView {
     protected void updateDamage(javax.swing.event.DocumentEvent changes,
             Shape a,
             ViewFactory f) {
-        super.updateDamage(changes, a, f);
         java.awt.Component host = getContainer();
+        if (lineCache != null) {
+            removeCachedLines(changes);
+        }
+        if (changes.getType() == DocumentEvent.EventType.CHANGE) {
+            // new tokens for the changed text (see SyntaxDocument's
+            // asynchronous parsing), so just repaint its lines
+            Element map = getElement();
+            int line0 = map.getElementIndex(changes.getOffset());
+            int line1 = map.getElementIndex(changes.getOffset() + changes.getLength());
+            damageLineRange(line0, line1, a, host);
+            return;
+        }
+        super.updateDamage(changes, a, f);
         host.repaint();
     }
+
+    /*
+     * Drops the cached lines whose text or tokens the change changed, and
+     * those of the lines it removed
+     */
+    private void removeCachedLines(DocumentEvent changes) {
+        Element map = getElement();
+        DocumentEvent.ElementChange ec = changes.getChange(map);
+        if (ec != null) {
+            for (Element removed : ec.getChildrenRemoved()) {
+                lineCache.remove(removed);
+            }
+        }
+        int start = changes.getOffset();
+        int end = (changes.getType() == DocumentEvent.EventType.REMOVE) ?
+                start : start + changes.getLength();
+        SyntaxDocument doc = (SyntaxDocument) getDocument();
+        if (doc.getTokensVersion() == doc.getVersion()) {
+            // parsed with the edit, so its tokens changed around it too
+            start = Math.min(start, doc.getDamageStart());
+            end = Math.max(end, doc.getDamageEnd());
+        }
+        int line1 = map.getElementIndex(end);
+        for (int i = map.getElementIndex(start); i <= line1; i++) {
+            lineCache.remove(map.getElement(i));
+        }
+    }
     /**
      * The values for the string key for Text Anti-Aliasing
      */
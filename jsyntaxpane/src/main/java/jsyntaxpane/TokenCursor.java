@@ -0,0 +1,137 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+/**
+ * A position in the tokens of a SyntaxDocument, for walking over them.
+ * Seeking a position is a binary search, and moving to the next or
+ * previous token does not search at all.  The getters read the current
+ * token without creating a Token for it.
+ *
+ * A cursor is only valid until the next edit of the document, see
+ * SyntaxDocument.getTokenCursor.  Without asynchronous parsing the edit
+ * updates the tokens the cursor reads in place, so it would then read
+ * moved or other tokens.  It starts before the first token.
+ */
+public final class TokenCursor {
+
+    private final TokenStore tokens;
+    private int ndx = -1;
+
+    TokenCursor(TokenStore tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Moves to the last token starting at or before pos.
+     *
+     * @return true if there is such a token
+     */
+    public boolean seek(int pos) {
+        ndx = (tokens == null) ? -1 : tokens.getIndexBefore(pos);
+        return isValid();
+    }
+
+    /**
+     * Moves to the given token.  If the token is not in the document, the
+     * cursor is moved before the first token.
+     *
+     * @return true if the token was found
+     */
+    public boolean seek(Token t) {
+        ndx = (tokens == null || t == null) ? -1 : tokens.indexOf(t);
+        return isValid();
+    }
+
+    /**
+     * Moves to the other token of the pair the current token is part of.
+     * See SyntaxDocument.getPairFor.
+     *
+     * @return true if there is such a token, otherwise the cursor stays
+     */
+    public boolean seekPair() {
+        int pair = isValid() ? tokens.getPairIndex(ndx) : -1;
+        if (pair < 0) {
+            return false;
+        }
+        ndx = pair;
+        return true;
+    }
+
+    /**
+     * Moves to the next token
+     *
+     * @return true if there is a next token
+     */
+    public boolean next() {
+        if (tokens != null && ndx < tokens.size()) {
+            ndx++;
+        }
+        return isValid();
+    }
+
+    /**
+     * Moves to the previous token
+     *
+     * @return true if there is a previous token
+     */
+    public boolean previous() {
+        if (ndx >= 0) {
+            ndx--;
+        }
+        return isValid();
+    }
+
+    /**
+     * Returns true if the cursor is at a token, and not before the first or
+     * after the last token.
+     */
+    public boolean isValid() {
+        return tokens != null && ndx >= 0 && ndx < tokens.size();
+    }
+
+    /**
+     * Returns the index of the current token in the document's tokens
+     */
+    public int getIndex() {
+        return ndx;
+    }
+
+    /**
+     * Returns the current token, or null if the cursor is not at a token
+     */
+    public Token getToken() {
+        return isValid() ? tokens.get(ndx) : null;
+    }
+
+    public TokenType getType() {
+        return tokens.getType(ndx);
+    }
+
+    public int getStart() {
+        return tokens.getStart(ndx);
+    }
+
+    public int getLength() {
+        return tokens.getLength(ndx);
+    }
+
+    public int getEnd() {
+        return tokens.getEnd(ndx);
+    }
+
+    public byte getPairValue() {
+        return tokens.getPairValue(ndx);
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A List of Tokens that stores the tokens in parallel primitive arrays
+ * instead of keeping a Token object for each of them.  A document can have
+ * millions of tokens, and this takes 10 bytes per token, and 4 more once
+ * pairs are looked up.
+ *
+ * Tokens added are copied into the arrays, and get returns a new Token
+ * each time it is called.  The primitive getters should be used where
+ * many tokens are visited.
+ *
+ * The tokens must be kept sorted by start and must not overlap, so tokens
+ * can be found by offset with a binary search.
+ *
+ * The partners of paired tokens are kept in a table, built when first
+ * needed.  The table moves with the tokens, and only the pairs of tokens
+ * changed since it was built are looked for again, until so many changed
+ * that it is built again.
+ */
+final class TokenStore extends AbstractList<Token> implements RandomAccess {
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private int[] starts;
+    private int[] lengths;
+    private byte[] types;
+    private byte[] pairs;
+    private int size;
+    // the partner of each paired token as the distance to it, 0 for none,
+    // or null until getPairIndex is used.  Not known for the tokens from
+    // dirtyStart to dirtyEnd, which changed since the table was built.
+    private int[] partners;
+    private boolean dirty;
+    private int dirtyStart;
+    private int dirtyEnd;
+    // the partners looked for since the tokens last changed
+    private final Map<Integer, Integer> found = new HashMap<Integer, Integer>();
+    private int foundModCount;
+    private static final int UNKNOWN = -2;
+
+    /**
+     * Creates an empty store with room for the given number of tokens
+     */
+    TokenStore(int capacity) {
+        capacity = Math.max(capacity, 10);
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        types = new byte[capacity];
+        pairs = new byte[capacity];
+    }
+
+    /**
+     * Creates a copy of the given store
+     */
+    TokenStore(TokenStore other) {
+        size = other.size;
+        starts = Arrays.copyOf(other.starts, size);
+        lengths = Arrays.copyOf(other.lengths, size);
+        types = Arrays.copyOf(other.types, size);
+        pairs = Arrays.copyOf(other.pairs, size);
+        synchronized (other) {
+            if (other.partners != null) {
+                partners = Arrays.copyOf(other.partners, size);
+                dirty = other.dirty;
+                dirtyStart = other.dirtyStart;
+                dirtyEnd = other.dirtyEnd;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a new Token for the token at the given index
+     */
+    @Override
+    public Token get(int index) {
+        checkIndex(index, size);
+        return new Token(TYPES[types[index]], starts[index], lengths[index], pairs[index]);
+    }
+
+    @Override
+    public Token set(int index, Token t) {
+        Token old = get(index);
+        put(index, t);
+        modCount++;
+        changed(index, index + 1, 1);
+        return old;
+    }
+
+    @Override
+    public void add(int index, Token t) {
+        checkIndex(index, size + 1);
+        makeRoom(index, 1);
+        put(index, t);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Token> c) {
+        checkIndex(index, size + 1);
+        makeRoom(index, c.size());
+        for (Token t : c) {
+            put(index++, t);
+        }
+        return !c.isEmpty();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Token> c) {
+        return addAll(size, c);
+    }
+
+    @Override
+    public Token remove(int index) {
+        Token old = get(index);
+        removeRange(index, index + 1);
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        int n = size - toIndex;
+        System.arraycopy(starts, toIndex, starts, fromIndex, n);
+        System.arraycopy(lengths, toIndex, lengths, fromIndex, n);
+        System.arraycopy(types, toIndex, types, fromIndex, n);
+        System.arraycopy(pairs, toIndex, pairs, fromIndex, n);
+        if (partners != null) {
+            System.arraycopy(partners, toIndex, partners, fromIndex, n);
+        }
+        size -= toIndex - fromIndex;
+        modCount++;
+        changed(fromIndex, toIndex, 0);
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        modCount++;
+        partners = null;
+    }
+
+    /**
+     * Returns the index of the given token.  As the tokens are sorted, this
+     * is a binary search and not a scan of all the tokens.
+     */
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Token)) {
+            return -1;
+        }
+        Token t = (Token) o;
+        int ndx = getIndexBefore(t.start);
+        if (ndx >= 0 && starts[ndx] == t.start && lengths[ndx] == t.length &&
+                TYPES[types[ndx]] == t.type) {
+            return ndx;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    /*
+     * The getters of the token at index check the index like get does, as
+     * the arrays keep the data of removed tokens past size.
+     */
+    public int getStart(int index) {
+        checkIndex(index, size);
+        return starts[index];
+    }
+
+    public int getLength(int index) {
+        checkIndex(index, size);
+        return lengths[index];
+    }
+
+    public int getEnd(int index) {
+        checkIndex(index, size);
+        return starts[index] + lengths[index];
+    }
+
+    public TokenType getType(int index) {
+        checkIndex(index, size);
+        return TYPES[types[index]];
+    }
+
+    public byte getPairValue(int index) {
+        checkIndex(index, size);
+        return pairs[index];
+    }
+
+    /**
+     * Returns the index of the last token starting at or before pos, or -1
+     * if all tokens start after pos.
+     */
+    public int getIndexBefore(int pos) {
+        int lo = 0;
+        int hi = size - 1;
+        int ndx = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= pos) {
+                ndx = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return ndx;
+    }
+
+    /**
+     * Returns the index of the other token of the pair the token at index
+     * is part of, or -1 if it has no partner.  Partners have the same
+     * absolute pairValue, and nest like brackets.
+     */
+    public synchronized int getPairIndex(int index) {
+        if (pairs[index] == 0) {
+            return -1;
+        }
+        if (partners == null || (dirty && dirtyEnd - dirtyStart > size / 8)) {
+            buildPairs();
+        }
+        int partner = getKnownPartner(index);
+        if (partner != UNKNOWN) {
+            return partner;
+        }
+        if (foundModCount != modCount) {
+            found.clear();
+            foundModCount = modCount;
+        }
+        Integer f = found.get(index);
+        if (f == null) {
+            f = findPartner(index);
+            found.put(index, f);
+        }
+        return f;
+    }
+
+    /*
+     * Records that the tokens from index to oldEnd were replaced by n tokens.
+     * The pairs of the tokens before and after them are kept in the table:
+     * their distance does not change, as the partners move with the tokens.
+     */
+    private void changed(int index, int oldEnd, int n) {
+        if (partners == null) {
+            return;
+        }
+        int newEnd = index + n;
+        if (!dirty) {
+            dirty = true;
+            dirtyStart = index;
+            dirtyEnd = newEnd;
+            return;
+        }
+        int end = dirtyEnd;
+        if (end >= oldEnd) {
+            end += newEnd - oldEnd;
+        } else if (end > index) {
+            end = newEnd;
+        }
+        dirtyStart = Math.min(dirtyStart, index);
+        dirtyEnd = Math.max(end, newEnd);
+    }
+
+    /*
+     * Returns the partner of the token at index from the table, -1 if it
+     * has none, or UNKNOWN if the table does not know it.  Only the pairs
+     * with both tokens before the dirty range or both after it are known,
+     * and the tokens without a partner that cannot have one in that range.
+     */
+    private int getKnownPartner(int index) {
+        int d = partners[index];
+        if (!dirty) {
+            return (d == 0) ? -1 : index + d;
+        }
+        boolean before = index < dirtyStart;
+        if (!before && index < dirtyEnd) {
+            return UNKNOWN;
+        }
+        if (d == 0) {
+            // openers before the range and closers after it may pair with
+            // the changed tokens
+            return ((pairs[index] > 0) == before) ? UNKNOWN : -1;
+        }
+        int partner = index + d;
+        boolean known = before ? partner < dirtyStart : partner >= dirtyEnd;
+        return known ? partner : UNKNOWN;
+    }
+
+    /*
+     * Looks for the partner of the token at index, skipping the pairs the
+     * table knows
+     */
+    private int findPartner(int index) {
+        int v = pairs[index];
+        int depth = 0;
+        if (v > 0) {
+            for (int i = index + 1; i < size; i++) {
+                if (pairs[i] == v) {
+                    int partner = getKnownPartner(i);
+                    if (partner > i) {
+                        i = partner;
+                    } else if (partner == -1) {
+                        // no closer after an unpaired opener is free
+                        return -1;
+                    } else {
+                        depth++;
+                    }
+                } else if (pairs[i] == -v) {
+                    if (depth == 0) {
+                        return i;
+                    }
+                    depth--;
+                }
+            }
+        } else {
+            for (int i = index - 1; i >= 0; i--) {
+                if (pairs[i] == v) {
+                    int partner = getKnownPartner(i);
+                    if (partner >= 0) {
+                        i = partner;
+                    } else if (partner == -1) {
+                        // no opener before an unpaired closer is free
+                        return -1;
+                    } else {
+                        depth++;
+                    }
+                } else if (pairs[i] == -v) {
+                    if (depth == 0) {
+                        return i;
+                    }
+                    depth--;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Matches all paired tokens, with one stack for each pairValue
+     */
+    private void buildPairs() {
+        if (partners == null || partners.length < starts.length) {
+            partners = new int[starts.length];
+        }
+        int[][] stacks = new int[129][];
+        int[] depths = new int[129];
+        for (int i = 0; i < size; i++) {
+            partners[i] = 0;
+            int p = pairs[i];
+            if (p == 0) {
+                continue;
+            }
+            int v = Math.abs(p);
+            if (p > 0) {
+                if (stacks[v] == null) {
+                    stacks[v] = new int[16];
+                } else if (depths[v] == stacks[v].length) {
+                    stacks[v] = Arrays.copyOf(stacks[v], depths[v] * 2);
+                }
+                stacks[v][depths[v]++] = i;
+            } else if (depths[v] > 0) {
+                int opener = stacks[v][--depths[v]];
+                partners[opener] = i - opener;
+                partners[i] = opener - i;
+            }
+        }
+        dirty = false;
+        found.clear();
+    }
+
+    /**
+     * Moves all tokens from the given index on by delta chars.
+     */
+    public void shift(int fromIndex, int delta) {
+        for (int i = fromIndex; i < size; i++) {
+            starts[i] += delta;
+        }
+    }
+
+    private void put(int index, Token t) {
+        starts[index] = t.start;
+        lengths[index] = t.length;
+        types[index] = (byte) t.type.ordinal();
+        pairs[index] = t.pairValue;
+    }
+
+    /**
+     * Opens a gap of n tokens at index
+     */
+    private void makeRoom(int index, int n) {
+        if (size + n > starts.length) {
+            int capacity = Math.max(size + n, starts.length + (starts.length >> 1));
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            types = Arrays.copyOf(types, capacity);
+            pairs = Arrays.copyOf(pairs, capacity);
+            if (partners != null) {
+                partners = Arrays.copyOf(partners, capacity);
+            }
+        }
+        int tail = size - index;
+        System.arraycopy(starts, index, starts, index + n, tail);
+        System.arraycopy(lengths, index, lengths, index + n, tail);
+        System.arraycopy(types, index, types, index + n, tail);
+        System.arraycopy(pairs, index, pairs, index + n, tail);
+        if (partners != null) {
+            System.arraycopy(partners, index, partners, index + n, tail);
+        }
+        size += n;
+        modCount++;
+        changed(index, index, n);
+    }
+
+    private void checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import jsyntaxpane.lexers.DefaultJFlexLexer;
+
+/**
+ * Keeps the tokens of a text up to date using a Lexer.
+ *
+ * For lexers that can be resumed from a saved state (DefaultJFlexLexer)
+ * checkpoints are kept, so after an edit only the tokens around the edit
+ * are lexed again.  Other lexers always parse the whole text.
+ *
+ * The tokens can also be parsed lazily: only up to a limit, and later
+ * continued with lexTo.  Edits after that limit do not need any lexing.
+ *
+ * The text is read from a Text, either the document itself or a copy of
+ * its chars, so the tokens can also be updated on another thread.  A
+ * Tokenizer itself must only be used by one thread at a time.  For each
+ * parse it borrows a lexer from the LexerPool of the kit's lexer, so the
+ * documents of a kit do not wait for each other.
+ */
+final class Tokenizer {
+
+    /**
+     * Number of tokens between two lexer checkpoints
+     */
+    private static final int CHECKPOINT_INTERVAL = 64;
+    private final Lexer lexer;
+    // lends copies of lexer, or null if lexer is shared
+    private final LexerPool pool;
+    private TokenStore tokens;
+    private List<Checkpoint> checkpoints;
+    private volatile boolean incremental = true;
+    private int lexedTo;
+    private int damageStart;
+    private int damageEnd;
+
+    Tokenizer(Lexer lexer) {
+        this.lexer = lexer;
+        pool = (lexer == null) ? null : LexerPool.of(lexer);
+    }
+
+    /**
+     * Returns the tokens, or null if there is no lexer.  The returned store
+     * is modified by the next parse.
+     */
+    TokenStore getTokens() {
+        return tokens;
+    }
+
+    void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Returns the length of the text at its start that has been lexed.  The
+     * tokens after it are not known yet.
+     */
+    int getLexedTo() {
+        return lexedTo;
+    }
+
+    /**
+     * Returns the start of the text whose tokens changed in the last parse
+     */
+    int getDamageStart() {
+        return damageStart;
+    }
+
+    /**
+     * Returns the end of the text whose tokens changed in the last parse
+     */
+    int getDamageEnd() {
+        return damageEnd;
+    }
+
+    /**
+     * Parses the whole text
+     */
+    void parse(Text text) {
+        parse(text, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses the text from its start.  Lexers that can be resumed stop at
+     * the first token ending at or after limit.
+     */
+    void parse(Text text, int limit) {
+        // if we have no lexer, then we must have no tokens...
+        if (lexer == null) {
+            tokens = null;
+            checkpoints = null;
+            lexedTo = text.length();
+            return;
+        }
+        int len = text.length();
+        TokenStore toks = new TokenStore(len / 10);
+        List<Checkpoint> cps = null;
+        long ts = System.nanoTime();
+        try {
+            Lexer l = acquireLexer();
+            try {
+                // a shared lexer is used by one document at a time
+                synchronized (l) {
+                    if (l instanceof DefaultJFlexLexer) {
+                        // no old checkpoints to stop at
+                        checkpoints = null;
+                        cps = new ArrayList<Checkpoint>(len / (10 * CHECKPOINT_INTERVAL));
+                        cps.add(new Checkpoint(0, 0, DefaultJFlexLexer.State.INITIAL));
+                        relex((DefaultJFlexLexer) l, text, cps.get(0), 0, 0, toks, cps, limit);
+                    } else {
+                        Segment seg = new Segment();
+                        text.getText(seg);
+                        l.parse(seg, 0, toks);
+                        lexedTo = len;
+                    }
+                }
+            } finally {
+                releaseLexer(l);
+            }
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            if (log.isLoggable(Level.FINEST)) {
+                log.finest(String.format("Parsed %d in %d ms, giving %d tokens\n",
+                        len, (System.nanoTime() - ts) / 1000000, toks.size()));
+            }
+            tokens = toks;
+            checkpoints = cps;
+            damageStart = 0;
+            damageEnd = len;
+        }
+    }
+
+    /**
+     * Continues a lazy parse up to the first token ending at or after pos
+     */
+    void lexTo(Text text, int pos) {
+        damageStart = damageEnd = lexedTo;
+        if (checkpoints == null || lexedTo >= Math.min(pos, text.length())) {
+            return;
+        }
+        // the last checkpoint is where the lexer stopped
+        Checkpoint from = checkpoints.get(checkpoints.size() - 1);
+        List<Token> toks = new ArrayList<Token>();
+        List<Checkpoint> cps = new ArrayList<Checkpoint>();
+        try {
+            Lexer l = acquireLexer();
+            try {
+                synchronized (l) {
+                    relex((DefaultJFlexLexer) l, text, from, checkpoints.size(), 0, toks, cps, pos);
+                }
+            } finally {
+                releaseLexer(l);
+            }
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+            parse(text);
+            return;
+        }
+        tokens.addAll(toks);
+        checkpoints.addAll(cps);
+        damageEnd = lexedTo;
+    }
+
+    /*
+     * Re-lexes the text after <code>removed</code> chars at offset were
+     * replaced by <code>inserted</code> chars.  Lexing resumes from the last
+     * checkpoint before the edited line, and stops as soon as the lexer
+     * reaches an old checkpoint after the edit in the same state.  From there
+     * on the old tokens are kept, just shifted.
+     * Lexers that cannot be resumed get a full parse.
+     * Like parse(Text, int), lexing stops at limit.
+     */
+    void parse(Text text, int offset, int removed, int inserted, int limit) {
+        if (!incremental || checkpoints == null) {
+            parse(text, limit);
+            return;
+        }
+        if (offset > lexedTo) {
+            // not lexed yet, nothing to do
+            damageStart = damageEnd = lexedTo;
+            return;
+        }
+        long ts = System.nanoTime();
+        int delta = inserted - removed;
+        int c = getCheckpointIndexBefore(text.getLineStart(offset));
+        Checkpoint from = checkpoints.get(c);
+        // the old checkpoints at or after the end of the edit
+        int next = c + 1;
+        while (next < checkpoints.size() && checkpoints.get(next).position < offset + removed) {
+            next++;
+        }
+        List<Token> relexed = new ArrayList<Token>();
+        List<Checkpoint> cps = new ArrayList<Checkpoint>();
+        try {
+            Lexer l = acquireLexer();
+            try {
+                synchronized (l) {
+                    next = relex((DefaultJFlexLexer) l, text, from, next, delta, relexed, cps,
+                            Math.min(limit, lexedTo + delta));
+                }
+            } finally {
+                releaseLexer(l);
+            }
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+            parse(text, limit);
+            return;
+        }
+        // replace the tokens and checkpoints up to where we met the old ones
+        boolean met = next < checkpoints.size();
+        int oldEnd = met ? checkpoints.get(next).tokenIndex : tokens.size();
+        int tokenDelta = relexed.size() - (oldEnd - from.tokenIndex);
+        damageStart = from.position;
+        if (met) {
+            lexedTo += delta;
+        }
+        damageEnd = met ? checkpoints.get(next).position + delta : lexedTo;
+        tokens.subList(from.tokenIndex, oldEnd).clear();
+        tokens.addAll(from.tokenIndex, relexed);
+        if (delta != 0) {
+            tokens.shift(from.tokenIndex + relexed.size(), delta);
+        }
+        checkpoints.subList(c + 1, next).clear();
+        checkpoints.addAll(c + 1, cps);
+        for (int i = c + 1 + cps.size(); i < checkpoints.size(); i++) {
+            Checkpoint cp = checkpoints.get(i);
+            cp.position += delta;
+            cp.tokenIndex += tokenDelta;
+        }
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(String.format("Re-lexed %d tokens from %d in %d ms\n",
+                    relexed.size(), from.position, (System.nanoTime() - ts) / 1000000));
+        }
+    }
+
+    /*
+     * Lexes from the given checkpoint and adds the tokens to toks, and a new
+     * checkpoint every CHECKPOINT_INTERVAL tokens to cps.  Lexing stops when
+     * the lexer gets to one of the old checkpoints from index next on (their
+     * positions shifted by delta) in the same state, as all tokens after
+     * that will be the same as before.
+     * Otherwise lexing stops at the first token ending at or after limit,
+     * which gets a checkpoint to continue from, and lexedTo is set.
+     *
+     * @return the index of the old checkpoint we met, or checkpoints.size()
+     * if we lexed up to limit or the end of the text
+     */
+    private int relex(DefaultJFlexLexer flex, Text text, Checkpoint from, int next, int delta,
+            List<Token> toks, List<Checkpoint> cps, int limit) throws IOException {
+        int size = (checkpoints == null) ? 0 : checkpoints.size();
+        flex.reset(text.getReader(from.position), from.position, from.state);
+        for (Token t = flex.yylex(); t != null; t = flex.yylex()) {
+            toks.add(t);
+            int pos = flex.getPosition();
+            while (next < size && checkpoints.get(next).position + delta < pos) {
+                next++;
+            }
+            if (next < size && checkpoints.get(next).position + delta == pos &&
+                    checkpoints.get(next).state.equals(flex.getState())) {
+                return next;
+            }
+            if (toks.size() % CHECKPOINT_INTERVAL == 0) {
+                cps.add(new Checkpoint(pos, from.tokenIndex + toks.size(), flex.getState()));
+            } else if (pos >= limit) {
+                cps.add(new Checkpoint(pos, from.tokenIndex + toks.size(), flex.getState()));
+            }
+            if (pos >= limit) {
+                lexedTo = pos;
+                return size;
+            }
+        }
+        lexedTo = text.length();
+        return size;
+    }
+
+    private Lexer acquireLexer() {
+        return (pool == null) ? lexer : pool.acquire();
+    }
+
+    private void releaseLexer(Lexer l) {
+        if (pool != null) {
+            pool.release(l);
+        }
+    }
+
+    /*
+     * Returns the index of the last checkpoint before pos.  The first
+     * checkpoint is at the start of the text, so there always is one.
+     */
+    private int getCheckpointIndexBefore(int pos) {
+        int lo = 1;
+        int hi = checkpoints.size() - 1;
+        int ndx = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (checkpoints.get(mid).position < pos) {
+                ndx = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return ndx;
+    }
+
+    /**
+     * Returns the text of the given document.  It must not be modified
+     * while it is parsed.
+     */
+    static Text textOf(SyntaxDocument doc) {
+        return new DocumentText(doc);
+    }
+
+    /**
+     * Returns the given text, which must not change
+     */
+    static Text textOf(CharSequence text) {
+        return new SequenceText(text);
+    }
+
+    /**
+     * The text to parse
+     */
+    interface Text {
+
+        int length();
+
+        /**
+         * Returns the start of the line containing pos
+         */
+        int getLineStart(int pos);
+
+        /**
+         * Returns a Reader over the text starting at pos
+         */
+        Reader getReader(int pos);
+
+        /**
+         * Puts the whole text into seg
+         */
+        void getText(Segment seg) throws BadLocationException;
+    }
+
+    private static class DocumentText implements Text {
+
+        private final SyntaxDocument doc;
+
+        private DocumentText(SyntaxDocument doc) {
+            this.doc = doc;
+        }
+
+        @Override
+        public int length() {
+            return doc.getLength();
+        }
+
+        @Override
+        public int getLineStart(int pos) {
+            return doc.getLineStartOffset(pos);
+        }
+
+        @Override
+        public Reader getReader(int pos) {
+            return new DocumentReader(doc, pos);
+        }
+
+        @Override
+        public void getText(Segment seg) throws BadLocationException {
+            doc.getText(0, doc.getLength(), seg);
+        }
+    }
+
+    private static class SequenceText implements Text {
+
+        private final CharSequence text;
+
+        private SequenceText(CharSequence text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public int getLineStart(int pos) {
+            while (pos > 0 && text.charAt(pos - 1) != '\n') {
+                pos--;
+            }
+            return pos;
+        }
+
+        @Override
+        public Reader getReader(int pos) {
+            return new SequenceReader(text, pos);
+        }
+
+        @Override
+        public void getText(Segment seg) {
+            char[] chars = new char[text.length()];
+            getChars(text, 0, chars.length, chars, 0);
+            seg.array = chars;
+            seg.offset = 0;
+            seg.count = chars.length;
+        }
+    }
+
+    /**
+     * A Reader over a CharSequence, reading snapshots of a PieceContent in
+     * bulk
+     */
+    private static class SequenceReader extends Reader {
+
+        private final CharSequence text;
+        private int pos;
+
+        private SequenceReader(CharSequence text, int pos) {
+            this.text = text;
+            this.pos = pos;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            int n = Math.min(len, text.length() - pos);
+            if (n <= 0) {
+                return (len == 0) ? 0 : -1;
+            }
+            getChars(text, pos, pos + n, cbuf, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void getChars(CharSequence text, int start, int end, char[] dst, int offset) {
+        if (text instanceof PieceContent.Snapshot) {
+            ((PieceContent.Snapshot) text).getChars(start, end, dst, offset);
+        } else if (text instanceof String) {
+            ((String) text).getChars(start, end, dst, offset);
+        } else {
+            for (int i = start; i < end; i++) {
+                dst[offset++] = text.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * A point between two tokens where lexing can be resumed: the state of
+     * the lexer at a text position, and the number of tokens before it.
+     */
+    private static class Checkpoint {
+
+        int position;
+        int tokenIndex;
+        final DefaultJFlexLexer.State state;
+
+        private Checkpoint(int position, int tokenIndex, DefaultJFlexLexer.State state) {
+            this.position = position;
+            this.tokenIndex = tokenIndex;
+            this.state = state;
+        }
+    }
+
+    /**
+     * A Reader over the text of a Document starting at a given position.
+     * The text is read in chunks, so lexers that stop early never touch
+     * the rest of the document.
+     */
+    private static class DocumentReader extends Reader {
+
+        private final Document doc;
+        private final Segment segment = new Segment();
+        private int pos;
+
+        private DocumentReader(Document doc, int pos) {
+            this.doc = doc;
+            this.pos = pos;
+            segment.setPartialReturn(true);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int avail = doc.getLength() - pos;
+            if (avail <= 0) {
+                return -1;
+            }
+            try {
+                doc.getText(pos, Math.min(len, avail), segment);
+            } catch (BadLocationException ex) {
+                throw new IOException(ex);
+            }
+            System.arraycopy(segment.array, segment.offset, cbuf, off, segment.count);
+            pos += segment.count;
+            return segment.count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(Tokenizer.class.getName());
+}
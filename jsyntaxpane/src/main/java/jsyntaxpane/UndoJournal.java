@@ -0,0 +1,231 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A file holding the oldest part of an undo history, as a stack of
+ * records.  Each record is the list of Deltas of one compound edit, the
+ * newest record is at the end of the file.
+ *
+ * The header holds a hash of the text of the document the history ends
+ * at.  It is only written when the journal is closed, so a journal that
+ * was not closed, or that is opened with another text, is emptied.
+ */
+final class UndoJournal {
+
+    private static final int MAGIC = 0x4a53554a;
+    private static final int HASH_LENGTH = 20;
+    private static final int HEADER = 4 + HASH_LENGTH;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long end;
+
+    /**
+     * Opens the journal in the given file, which is created if needed.
+     * The records are kept if the journal was closed with the given text,
+     * otherwise they are dropped.
+     */
+    UndoJournal(File file, CharSequence text) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        boolean valid = false;
+        if (channel.size() >= HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            read(header, 0);
+            header.flip();
+            int magic = header.getInt();
+            byte[] hash = new byte[HASH_LENGTH];
+            header.get(hash);
+            valid = magic == MAGIC && Arrays.equals(hash, hash(text));
+        }
+        end = valid ? channel.size() : HEADER;
+        channel.truncate(end);
+        // until closed, the records do not match any text
+        writeHeader(new byte[HASH_LENGTH]);
+    }
+
+    boolean isEmpty() {
+        return end == HEADER;
+    }
+
+    /**
+     * Adds a record at the end
+     */
+    void push(List<Delta> deltas) throws IOException {
+        int size = 4;
+        for (Delta d : deltas) {
+            size += 12 + 2 * (d.removed.length() + d.inserted.length());
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size + 4);
+        buf.putInt(deltas.size());
+        for (Delta d : deltas) {
+            buf.putInt(d.offset);
+            putString(buf, d.removed);
+            putString(buf, d.inserted);
+        }
+        // the length at the end, so the records can be read from the end
+        buf.putInt(size);
+        buf.flip();
+        write(buf, end);
+        end += size + 4;
+    }
+
+    /**
+     * Removes the record at the end and returns it, or returns null if
+     * there is none.
+     */
+    List<Delta> pop() throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        read(length, end - 4);
+        int size = length.getInt(0);
+        long start = end - 4 - size;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        read(buf, start);
+        buf.flip();
+        int n = buf.getInt();
+        List<Delta> deltas = new ArrayList<Delta>(n);
+        for (int i = 0; i < n; i++) {
+            int offset = buf.getInt();
+            String removed = getString(buf);
+            String inserted = getString(buf);
+            deltas.add(new Delta(offset, removed, inserted));
+        }
+        end = start;
+        channel.truncate(end);
+        return deltas;
+    }
+
+    /**
+     * Drops all records
+     */
+    void clear() throws IOException {
+        end = HEADER;
+        channel.truncate(end);
+    }
+
+    /**
+     * Closes the journal, marking its records as the history of the given
+     * text.
+     */
+    void close(CharSequence text) throws IOException {
+        try {
+            writeHeader(hash(text));
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Closes the journal without marking its records, so they are dropped
+     * when it is opened again.
+     */
+    void discard() throws IOException {
+        raf.close();
+    }
+
+    private void writeHeader(byte[] hash) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC);
+        header.put(hash);
+        header.flip();
+        write(header, 0);
+    }
+
+    private void read(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Undo journal is truncated");
+            }
+        }
+    }
+
+    private void write(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        buf.putInt(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf.putChar(s.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        char[] chars = new char[buf.getInt()];
+        buf.asCharBuffer().get(chars);
+        buf.position(buf.position() + 2 * chars.length);
+        return new String(chars);
+    }
+
+    /**
+     * Returns the SHA-1 hash of the UTF-16 chars of the text
+     */
+    static byte[] hash(CharSequence text) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        char[] chars = new char[8192];
+        ByteBuffer bytes = ByteBuffer.allocate(2 * chars.length);
+        for (int start = 0; start < text.length(); start += chars.length) {
+            int n = Math.min(chars.length, text.length() - start);
+            if (text instanceof PieceContent.Snapshot) {
+                ((PieceContent.Snapshot) text).getChars(start, start + n, chars, 0);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    chars[i] = text.charAt(start + i);
+                }
+            }
+            bytes.clear();
+            bytes.asCharBuffer().put(chars, 0, n);
+            md.update(bytes.array(), 0, 2 * n);
+        }
+        return md.digest();
+    }
+
+    /**
+     * The text removed and inserted at an offset by an edit
+     */
+    static final class Delta {
+
+        final int offset;
+        final String removed;
+        final String inserted;
+
+        Delta(int offset, String removed, String inserted) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import jsyntaxpane.SyntaxDocument;
 import jsyntaxpane.util.Configuration;
 
 import javax.swing.*;
+import javax.swing.text.Document;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 
@@ -69,10 +70,11 @@ public abstract class AbstractUndoRedoAction extends DefaultSyntaxAction {
 
         // editor.addPropertyChangeListener("editorKit", docListener);
 
-        // Document doc = editor.getDocument();
-        // if (doc instanceof SyntaxDocument) {
-        //     setDocument((SyntaxDocument) doc);
-        // }
+        // lazily created actions are installed after the document was set
+        Document doc = editor.getDocument();
+        if (doc instanceof SyntaxDocument) {
+            setDocument((SyntaxDocument) doc);
+        }
     }
 
     @Override
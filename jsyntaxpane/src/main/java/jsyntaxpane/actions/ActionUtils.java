@@ -191,6 +191,26 @@ public class ActionUtils {
 		}
 	}
 
+	/**
+	 * Replaces the selection of the text component with the given text.
+	 * In a SyntaxDocument the removal and insert are one batch, so the
+	 * document is parsed once, see SyntaxDocument.runBatch.
+	 */
+	public static void replaceSelection(final JTextComponent target, final String text) {
+		SyntaxDocument sDoc = getSyntaxDocument(target);
+		if (sDoc == null) {
+			target.replaceSelection(text);
+			return;
+		}
+		sDoc.runBatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.replaceSelection(text);
+			}
+		});
+	}
+
 	/**
 	 * Gets the Line Number at the give position of the editor component.
 	 * The first line number is ZERO
@@ -448,7 +468,7 @@ public class ActionUtils {
 			}
 		}
 		int ofst = target.getSelectionStart();
-		target.replaceSelection(sb.toString());
+		replaceSelection(target, sb.toString());
 		if (selStart >= 0) {
 			// target.setCaretPosition(selStart);
 			target.select(ofst + selStart, ofst + selEnd);
@@ -487,7 +507,7 @@ public class ActionUtils {
 			selStart += target.getSelectionStart();
 			selEnd += target.getSelectionStart();
 		}
-		target.replaceSelection(sb.toString());
+		replaceSelection(target, sb.toString());
 		if (selStart >= 0) {
 			// target.setCaretPosition(selStart);
 			target.select(selStart, selEnd);
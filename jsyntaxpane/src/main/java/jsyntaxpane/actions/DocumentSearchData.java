@@ -134,12 +134,19 @@ public class DocumentSearchData {
 			return;
 		}
 		Matcher matcher = sDoc.getMatcher(getPattern());
-		String newText = matcher.replaceAll(replacement);
-		try {
-			sDoc.replace(0, sDoc.getLength(), newText, null);
-		} catch (BadLocationException ex) {
-			Logger.getLogger(DocumentSearchData.class.getName()).log(Level.SEVERE, null, ex);
-		}
+		final String newText = matcher.replaceAll(replacement);
+		final SyntaxDocument doc = sDoc;
+		sDoc.runBatch(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					doc.replace(0, doc.getLength(), newText, null);
+				} catch (BadLocationException ex) {
+					Logger.getLogger(DocumentSearchData.class.getName()).log(Level.SEVERE, null, ex);
+				}
+			}
+		});
 	}
 
 	/**
@@ -80,7 +80,7 @@ public class IndentAction extends DefaultSyntaxAction {
 				sb.append(line);
 				sb.append('\n');
 			}
-			target.replaceSelection(sb.toString());
+			ActionUtils.replaceSelection(target, sb.toString());
 			target.select(start, start + sb.length());
 		}
 	}
@@ -70,7 +70,7 @@ public class ToggleCommentsAction extends DefaultSyntaxAction {
             }
             toggled.append('\n');
         }
-        target.replaceSelection(toggled.toString());
+        ActionUtils.replaceSelection(target, toggled.toString());
         target.select(start, start + toggled.length());
     }
 
@@ -45,7 +45,7 @@ public class UnindentAction extends DefaultSyntaxAction {
             }
             sb.append('\n');
         }
-        target.replaceSelection(sb.toString());
+        ActionUtils.replaceSelection(target, sb.toString());
         target.select(start, start + sb.length());
     }
 }
@@ -17,6 +17,7 @@ import java.awt.event.ActionEvent;
 import javax.swing.text.JTextComponent;
 import jsyntaxpane.SyntaxDocument;
 import jsyntaxpane.Token;
+import jsyntaxpane.TokenCursor;
 import jsyntaxpane.TokenType;
 
 /**
@@ -33,8 +34,14 @@ public class XmlTagCompleteAction extends DefaultSyntaxAction {
     public void actionPerformed(JTextComponent target, SyntaxDocument sDoc,
             int dot, ActionEvent e) {
         Token tok = sDoc.getTokenAt(dot);
-        while (tok != null && tok.type != TokenType.TYPE) {
-            tok = sDoc.getPrevToken(tok);
+        if (tok != null) {
+            // walk back to the tag
+            TokenCursor c = sDoc.getTokenCursor();
+            c.seek(tok);
+            while (c.isValid() && c.getType() != TokenType.TYPE) {
+                c.previous();
+            }
+            tok = c.getToken();
         }
         if (tok == null) {
             target.replaceSelection(">");
@@ -20,6 +20,9 @@ import java.beans.PropertyChangeListener;
 import javax.swing.JEditorPane;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.CaretListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
 import javax.swing.text.JTextComponent;
 import jsyntaxpane.SyntaxDocument;
 import jsyntaxpane.Token;
@@ -31,7 +34,7 @@ import jsyntaxpane.util.Configuration;
  *
  * @author Ayman Al-Sairafi
  */
-public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChangeListener {
+public class PairsMarker implements CaretListener, DocumentListener, SyntaxComponent, PropertyChangeListener {
 
     public static final String PROPERTY_COLOR = "PairMarker.Color";
     private JTextComponent pane;
@@ -43,8 +46,11 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
 
     @Override
     public void caretUpdate(CaretEvent e) {
+        markPairsAt(e.getDot());
+    }
+
+    private void markPairsAt(int pos) {
         removeMarkers();
-        int pos = e.getDot();
         SyntaxDocument doc = ActionUtils.getSyntaxDocument(pane);
         Token token = doc.getTokenAt(pos);
         if (token != null && token.pairValue != 0) {
@@ -56,6 +62,23 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
         }
     }
 
+    /**
+     * The document fires a change event when its tokens changed after the
+     * edits, as after a batch of edits: the pairs are marked again.
+     */
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        markPairsAt(pane.getCaretPosition());
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+    }
+
     /**
      * Remove all the highlights from the editor pane.  This should be called
      * when the editor-kit is removed.
@@ -74,6 +97,7 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
     public void install(JEditorPane editor) {
         pane = editor;
         pane.addCaretListener(this);
+        pane.getDocument().addDocumentListener(this);
         status = Status.INSTALLING;
     }
 
@@ -81,6 +105,7 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
     public void deinstall(JEditorPane editor) {
         status = Status.DEINSTALLING;
         pane.removeCaretListener(this);
+        pane.getDocument().removeDocumentListener(this);
         removeMarkers();
     }
 
@@ -88,8 +113,14 @@ public class PairsMarker implements CaretListener, SyntaxComponent, PropertyChan
     public void propertyChange(PropertyChangeEvent evt) {
         if (evt.getPropertyName().equals("document")) {
                 pane.removeCaretListener(this);
+            if (evt.getOldValue() instanceof Document) {
+                ((Document) evt.getOldValue()).removeDocumentListener(this);
+            }
             if (status.equals(Status.INSTALLING)) {
                 pane.addCaretListener(this);
+                if (evt.getNewValue() instanceof Document) {
+                    ((Document) evt.getNewValue()).addDocumentListener(this);
+                }
                 removeMarkers();
             }
         }
@@ -24,6 +24,9 @@ import java.util.logging.Logger;
 import javax.swing.JEditorPane;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.CaretListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
 import jsyntaxpane.SyntaxDocument;
 import jsyntaxpane.Token;
 import jsyntaxpane.TokenType;
@@ -35,7 +38,7 @@ import jsyntaxpane.util.Configuration;
  * 
  * @author Ayman Al-Sairafi
  */
-public class TokenMarker implements SyntaxComponent, CaretListener, PropertyChangeListener {
+public class TokenMarker implements SyntaxComponent, CaretListener, DocumentListener, PropertyChangeListener {
 
     public static final String DEFAULT_TOKENTYPES = "IDENTIFIER, TYPE, TYPE2, TYPE3";
     public static final String PROPERTY_COLOR = "TokenMarker.Color";
@@ -57,6 +60,23 @@ public class TokenMarker implements SyntaxComponent, CaretListener, PropertyChan
         markTokenAt(e.getDot());
     }
 
+    /**
+     * The document fires a change event when its tokens changed after the
+     * edits, as after a batch of edits: the tokens are marked again.
+     */
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        markTokenAt(pane.getCaretPosition());
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+    }
+
     public void markTokenAt(int pos) {
         SyntaxDocument doc = ActionUtils.getSyntaxDocument(pane);
         if (doc != null) {
@@ -121,6 +141,7 @@ public class TokenMarker implements SyntaxComponent, CaretListener, PropertyChan
     public void install(JEditorPane editor) {
         this.pane = editor;
         pane.addCaretListener(this);
+        pane.getDocument().addDocumentListener(this);
         markTokenAt(editor.getCaretPosition());
         status = Status.INSTALLING;
     }
@@ -130,6 +151,7 @@ public class TokenMarker implements SyntaxComponent, CaretListener, PropertyChan
         status = Status.DEINSTALLING;
         removeMarkers();
         pane.removeCaretListener(this);
+        pane.getDocument().removeDocumentListener(this);
     }
     private static final Logger LOG = Logger.getLogger(TokenMarker.class.getName());
 
@@ -137,8 +159,14 @@ public class TokenMarker implements SyntaxComponent, CaretListener, PropertyChan
     public void propertyChange(PropertyChangeEvent evt) {
         if (evt.getPropertyName().equals("document")) {
                 pane.removeCaretListener(this);
+            if (evt.getOldValue() instanceof Document) {
+                ((Document) evt.getOldValue()).removeDocumentListener(this);
+            }
             if (status.equals(Status.INSTALLING)) {
                 pane.addCaretListener(this);
+                if (evt.getNewValue() instanceof Document) {
+                    ((Document) evt.getNewValue()).addDocumentListener(this);
+                }
                 removeMarkers();
             }
         }
@@ -16,7 +16,6 @@ package jsyntaxpane.lexers;
 import jsyntaxpane.Lexer;
 import jsyntaxpane.Token;
 import jsyntaxpane.TokenType;
-import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.List;
@@ -35,6 +34,8 @@ public abstract class DefaultJFlexLexer implements Lexer {
     protected int tokenStart;
     protected int tokenLength;
     protected int offset;
+    // reused by each parse, as the lexer keeps its buffer too
+    private final SegmentReader segmentReader = new SegmentReader();
 
     /**
      * Helper method to create and return a new Token from of TokenType
@@ -82,17 +83,170 @@ public abstract class DefaultJFlexLexer implements Lexer {
     @Override
     public void parse(Segment segment, int ofst, List<Token> tokens) {
         try {
-            CharArrayReader reader = new CharArrayReader(segment.array, segment.offset, segment.count);
-            yyreset(reader);
-            this.offset = ofst;
+            segmentReader.set(segment);
+            reset(segmentReader, ofst);
             for (Token t = yylex(); t != null; t = yylex()) {
                 tokens.add(t);
             }
         } catch (IOException ex) {
             Logger.getLogger(DefaultJFlexLexer.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            // do not keep the text
+            segmentReader.set(null);
         }
     }
 
+    /**
+     * Resets the lexer to start reading from the given reader in its initial
+     * state.  The tokens can then be pulled one by one by calling
+     * {@link DefaultJFlexLexer#yylex()} until it returns null.  This allows
+     * callers to stop lexing early, for example once re-lexing after an edit
+     * produces the same tokens as before.
+     *
+     * @param reader the text to lex
+     * @param ofst offset to add to start of each token
+     */
+    public void reset(Reader reader, int ofst) {
+        yyreset(reader);
+        this.offset = ofst;
+    }
+
+    /**
+     * Resets the lexer to resume lexing from the given reader in the given
+     * state.  The state must have been obtained by {@link #getState()} at
+     * the position where the reader now starts, which is also passed as
+     * ofst.  Lexing then continues exactly as if it never stopped.
+     *
+     * @param reader the text to lex, starting at the position of the state
+     * @param ofst offset to add to start of each token, normally the
+     * position of the state
+     * @param state the state to resume in
+     */
+    public void reset(Reader reader, int ofst, State state) {
+        reset(reader, ofst);
+        yybegin(state.lexicalState);
+        // yychar is 0 again, so these are now relative to ofst
+        tokenStart = state.tokenStart;
+        tokenLength = state.tokenLength;
+        setExtraState(state.extra);
+    }
+
+    /**
+     * Returns the state of the lexer at the current position.  This is only
+     * meaningful between tokens, that is after a reset or after
+     * {@link #yylex()} returned a token.
+     *
+     * In the initial lexical state the generated lexers do not collect any
+     * token, so tokenStart and tokenLength are ignored there.
+     *
+     * @return immutable state that can be used to resume lexing later
+     */
+    public State getState() {
+        int state = yystate();
+        int extra = getExtraState();
+        if (state == YYINITIAL) {
+            return extra == 0 ? State.INITIAL : new State(state, 0, 0, extra);
+        }
+        return new State(state, tokenStart - (yychar() + yylength()), tokenLength, extra);
+    }
+
+    /**
+     * Returns the document position the lexer has reached, that is the end of
+     * the last matched text, offset included.  This is the position that
+     * goes with {@link #getState()}.
+     */
+    public int getPosition() {
+        return offset + yychar() + yylength();
+    }
+
+    /**
+     * Lexers that keep more state in their own fields than the lexical state
+     * and the tokenStart and tokenLength of the token being collected (like a
+     * nesting depth) should override this and pack that state into an int.
+     * It should return 0 when the fields are not in use.
+     *
+     * @return the extra state, or 0
+     */
+    protected int getExtraState() {
+        return 0;
+    }
+
+    /**
+     * Restores the fields saved by {@link #getExtraState()}.
+     */
+    protected void setExtraState(int extra) {
+    }
+
+    /**
+     * The state of a lexer between two tokens: the JFlex lexical state, the
+     * start and length of a token that is still being collected (the start
+     * is relative to the position of the state), and any extra state from
+     * {@link DefaultJFlexLexer#getExtraState()}.
+     * States are immutable and compared by value, so they can be stored as
+     * checkpoints and resumed any number of times.
+     */
+    public static final class State {
+
+        /**
+         * The state at the start of a document
+         */
+        public static final State INITIAL = new State(YYINITIAL, 0, 0, 0);
+        private final int lexicalState;
+        private final int tokenStart;
+        private final int tokenLength;
+        private final int extra;
+
+        private State(int lexicalState, int tokenStart, int tokenLength, int extra) {
+            this.lexicalState = lexicalState;
+            this.tokenStart = tokenStart;
+            this.tokenLength = tokenLength;
+            this.extra = extra;
+        }
+
+        public int getLexicalState() {
+            return lexicalState;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof State) {
+                State s = (State) obj;
+                return lexicalState == s.lexicalState && tokenStart == s.tokenStart &&
+                        tokenLength == s.tokenLength && extra == s.extra;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return ((lexicalState * 31 + tokenStart) * 31 + tokenLength) * 31 + extra;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("State(%d, %d, %d, %d)", lexicalState, tokenStart,
+                    tokenLength, extra);
+        }
+    }
+
+    /**
+     * The initial lexical state of all JFlex lexers
+     */
+    private static final int YYINITIAL = 0;
+
+    /**
+     * Returns the current lexical state.
+     * This is created automatically by JFlex.
+     */
+    public abstract int yystate();
+
+    /**
+     * Enters a new lexical state.
+     * This is created automatically by JFlex.
+     */
+    public abstract void yybegin(int newState);
+
     /**
      * This will be called to reset the the lexer.
      * This is created automatically by JFlex.
@@ -137,4 +291,43 @@ public abstract class DefaultJFlexLexer implements Lexer {
      * added to create this and return the private yychar field
      */
     public abstract int yychar();
+
+    /**
+     * A Reader over the chars of a Segment that can be set to another one
+     */
+    private static final class SegmentReader extends Reader {
+
+        private char[] array;
+        private int pos;
+        private int end;
+
+        void set(Segment segment) {
+            if (segment == null) {
+                array = null;
+                pos = end = 0;
+            } else {
+                array = segment.array;
+                pos = segment.offset;
+                end = segment.offset + segment.count;
+            }
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int n = Math.min(len, end - pos);
+            System.arraycopy(array, pos, cbuf, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -14,12 +14,14 @@
 package jsyntaxpane.util;
 
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -32,6 +34,11 @@ import java.util.regex.Pattern;
  * Except for the getXXXX methods, all other Map Interface methods operate on the
  * current (non-parent) collection and do NOT touch the parent.
  *
+ * The values of getString and the sorted keys used by getKeys are cached
+ * until this Configuration or one of its parents is changed with put,
+ * putAll, remove or clear.
+ * Changes made through keySet, values or entrySet are not seen by them.
+ *
  * @author Ayman Al-Sairafi
  */
 public class Configuration implements Map<String, String> {
@@ -48,6 +55,17 @@ public class Configuration implements Map<String, String> {
      * The properties we have, excluding the parents defaults
      */
     Map<String, String> props;
+    /**
+     * The resolved values of getString, and all keys sorted for getKeys.
+     * Both are dropped when getVersion changes.
+     */
+    private Map<String, String> resolved;
+    private String[] sortedKeys;
+    private int cacheVersion = -1;
+    /**
+     * Incremented by every change of this Configuration, see getVersion
+     */
+    private final AtomicInteger modCount = new AtomicInteger();
 
     /**
      * Creates a new COnfiguration that uses parent as its parent
@@ -83,7 +101,40 @@ public class Configuration implements Map<String, String> {
      * @param key
      * @return
      */
-    public String getString(String key) {
+    public synchronized String getString(String key) {
+        validateCache();
+        String value = resolved.get(key);
+        if (value == null) {
+            value = resolve(key);
+            resolved.put(key, (value == null) ? NO_VALUE : value);
+        }
+        return (value == NO_VALUE) ? null : value;
+    }
+
+    /**
+     * Caches the values of getString the build resolved for the class of
+     * this Configuration, see ConfigurationBundle, if this Configuration
+     * and its parents hold the bundled files they were resolved from.
+     * Otherwise the values are resolved by getString as usual.
+     */
+    public synchronized void useBundledValues() {
+        Map<String, String> values = JarServiceProvider.getBundledValues(clazz);
+        if (values == null) {
+            return;
+        }
+        for (Configuration c = this; c != null; c = c.parent) {
+            Map<?, ?> file = JarServiceProvider.getBundledFile(
+                    ConfigurationBundle.getFileName(c.clazz));
+            Map<?, ?> mine = (c.props == null) ? Collections.emptyMap() : c.props;
+            if (!mine.equals((file == null) ? Collections.emptyMap() : file)) {
+                return;
+            }
+        }
+        validateCache();
+        resolved.putAll(values);
+    }
+
+    private String resolve(String key) {
         String value = null;
         if (props != null) {
             value = props.get(key);
@@ -214,6 +265,21 @@ public class Configuration implements Map<String, String> {
             props = new HashMap<String, String>();
         }
         props.putAll(config);
+        modCount.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever this Configuration or one of
+     * its parents may have changed, so values derived from it can be kept
+     * until then.
+     */
+    public int getVersion() {
+        // the counts only grow, so their sum changes with any of them
+        int version = 0;
+        for (Configuration c = this; c != null; c = c.parent) {
+            version += c.modCount.get();
+        }
+        return version;
     }
 
     /**
@@ -242,6 +308,7 @@ public class Configuration implements Map<String, String> {
             props = new HashMap<String, String>();
         }
         Object old = props.put(key, value);
+        modCount.incrementAndGet();
         return (old == null) ? null : old.toString();
     }
 
@@ -276,6 +343,7 @@ public class Configuration implements Map<String, String> {
             return null;
         }
         Object old = props.remove(key);
+        modCount.incrementAndGet();
         return (old == null) ? null : old.toString();
     }
 
@@ -283,6 +351,7 @@ public class Configuration implements Map<String, String> {
     public void clear() {
         if (props != null) {
             props.clear();
+            modCount.incrementAndGet();
         }
     }
 
@@ -356,8 +425,23 @@ public class Configuration implements Map<String, String> {
      */
     public Set<StringKeyMatcher> getKeys(Pattern pattern) {
         Set<StringKeyMatcher> matched = new HashSet<StringKeyMatcher>();
-        Set<String> all = stringPropertyNames();
-        for (String k : all) {
+        String[] keys;
+        synchronized (this) {
+            validateCache();
+            if (sortedKeys == null) {
+                sortedKeys = stringPropertyNames().toArray(new String[0]);
+                Arrays.sort(sortedKeys);
+            }
+            keys = sortedKeys;
+        }
+        // only the keys starting with the prefix all matches start with
+        String prefix = getLiteralPrefix(pattern);
+        int i = Arrays.binarySearch(keys, prefix);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < keys.length && keys[i].startsWith(prefix); i++) {
+            String k = keys[i];
             Matcher m = pattern.matcher(k);
             if (m.matches()) {
                 StringKeyMatcher skm = new StringKeyMatcher(k, m,
@@ -368,8 +452,96 @@ public class Configuration implements Map<String, String> {
         }
         return matched;
     }
+
+    /*
+     * Drops the cached values if this Configuration or one of its parents
+     * changed since they were cached.  Must be called holding the lock.
+     */
+    private void validateCache() {
+        int version = getVersion();
+        if (resolved == null || cacheVersion != version) {
+            resolved = new HashMap<String, String>();
+            sortedKeys = null;
+            cacheVersion = version;
+        }
+    }
+
+    /**
+     * Returns the literal text all strings matching the whole pattern start
+     * with, which may be empty.
+     */
+    static String getLiteralPrefix(Pattern pattern) {
+        String re = pattern.pattern();
+        if (pattern.flags() != 0 || hasAlternatives(re)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = 0;
+        while (i < re.length()) {
+            char c = re.charAt(i);
+            String literal;
+            int next;
+            if (re.startsWith("\\Q", i)) {
+                int end = re.indexOf("\\E", i + 2);
+                literal = re.substring(i + 2, (end < 0) ? re.length() : end);
+                next = (end < 0) ? re.length() : end + 2;
+            } else if (c == '\\' && i + 1 < re.length() &&
+                    !Character.isLetterOrDigit(re.charAt(i + 1))) {
+                literal = re.substring(i + 1, i + 2);
+                next = i + 2;
+            } else if (REGEX_CHARS.indexOf(c) < 0) {
+                literal = re.substring(i, i + 1);
+                next = i + 1;
+            } else {
+                break;
+            }
+            if (next < re.length() && "?*+{".indexOf(re.charAt(next)) >= 0) {
+                // the last char is optional or repeated
+                prefix.append(literal, 0, Math.max(0, literal.length() - 1));
+                break;
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    /*
+     * Returns true if the regex has a | outside of groups and classes
+     */
+    private static boolean hasAlternatives(String re) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < re.length(); i++) {
+            char c = re.charAt(i);
+            if (re.startsWith("\\Q", i)) {
+                int end = re.indexOf("\\E", i + 2);
+                if (end < 0) {
+                    return false;
+                }
+                i = end + 1;
+            } else if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static final String[] EMPTY_LIST = new String[0];
     public static final Pattern COMMA_SEPARATOR = Pattern.compile("\\s*,\\s*");
     private static Pattern PARENT_KEY = Pattern.compile("\\$\\{(\\w+)\\}");
+    private static final String REGEX_CHARS = "\\[](){}.*+?^$|";
+    // the value cached for keys that have none
+    private static final String NO_VALUE = new String();
     private static final Logger LOG = Logger.getLogger(Configuration.class.getName());
 }
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * All .properties files of the kits parsed ahead of time into one file,
+ * so JarServiceProvider does not look up, inflate and parse each of them
+ * when the first editors are created.  The bundle is written by the build,
+ * see main, and read by JarServiceProvider.readProperties if it is present.
+ *
+ * The bundle also holds the values with ${} references of the kit
+ * configurations, as Configuration.getString resolves them for each kit
+ * listed in kitsfortypes.properties.  They are only used by the
+ * Configurations that still hold the bundled files, see
+ * Configuration.useBundledValues.
+ */
+public final class ConfigurationBundle {
+
+    /**
+     * The name of the bundle in JarServiceProvider.SERVICES_ROOT.  The
+     * names of the files in it are relative to SERVICES_ROOT too.
+     */
+    public static final String NAME = "jsyntaxpane/config.bundle";
+    static final String FOLDER = "jsyntaxpane/";
+    private static final String DEFAULT_KIT = "jsyntaxpane.DefaultSyntaxKit";
+    private static final int MAGIC = 0x4a534342;
+    private static final Logger LOG = Logger.getLogger(ConfigurationBundle.class.getName());
+
+    private ConfigurationBundle() {}
+
+    /**
+     * Writes the bundle of all .properties files in the services folder of
+     * the given classes directory into that folder.  The kit classes must
+     * be on the classpath to resolve their values.
+     *
+     * @param args the classes directory
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        File services = new File(args[0], JarServiceProvider.SERVICES_ROOT);
+        Map<String, Properties> files = new TreeMap<String, Properties>();
+        addFiles(new File(services, FOLDER), FOLDER, files);
+        Map<String, Map<String, String>> values = resolve(files);
+        File bundle = new File(services, NAME);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(bundle)));
+        try {
+            write(out, files, values);
+        } finally {
+            out.close();
+        }
+        LOG.log(Level.INFO, "Wrote {0} files and the values of {1} kits to {2}",
+                new Object[]{files.size(), values.size(), bundle});
+    }
+
+    /**
+     * Returns the name of the config file of the given kit class, as
+     * DefaultSyntaxKit reads it
+     */
+    static String getFileName(Class<?> kit) {
+        return kit.getName().replace(".", "/").toLowerCase() + "/config.properties";
+    }
+
+    /*
+     * Returns the values with ${} references of each kit, resolved from
+     * the given files
+     */
+    private static Map<String, Map<String, String>> resolve(Map<String, Properties> files) {
+        Set<String> kits = new TreeSet<String>();
+        kits.add(DEFAULT_KIT);
+        Properties types = files.get(FOLDER + "kitsfortypes.properties");
+        if (types != null) {
+            for (String type : types.stringPropertyNames()) {
+                kits.add(types.getProperty(type).trim());
+            }
+        }
+        Map<String, Map<String, String>> values = new TreeMap<String, Map<String, String>>();
+        for (String kit : kits) {
+            try {
+                Class<?> c = Class.forName(kit, false, ConfigurationBundle.class.getClassLoader());
+                values.put(kit, resolve(getConfiguration(c, files)));
+            } catch (ClassNotFoundException ex) {
+                LOG.log(Level.WARNING, "Cannot resolve the values of " + kit, ex);
+            }
+        }
+        return values;
+    }
+
+    private static Map<String, String> resolve(Configuration config) {
+        Map<String, String> values = new TreeMap<String, String>();
+        for (String key : config.stringPropertyNames()) {
+            String raw = null;
+            for (Configuration c = config; raw == null; c = c.parent) {
+                raw = c.get(key);
+            }
+            try {
+                String value = config.getString(key);
+                if (!value.equals(raw)) {
+                    values.put(key, value);
+                }
+            } catch (RuntimeException ex) {
+                // a reference without a value, left to getString
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Returns the Configuration DefaultSyntaxKit.getConfig makes for the
+     * kit from the given files
+     */
+    private static Configuration getConfiguration(Class<?> kit, Map<String, Properties> files) {
+        Configuration parent = null;
+        if (!kit.getName().equals(DEFAULT_KIT) && kit.getSuperclass() != null) {
+            parent = getConfiguration(kit.getSuperclass(), files);
+        }
+        Configuration config = new Configuration(kit, parent);
+        Properties p = files.get(getFileName(kit));
+        if (p != null) {
+            config.putAll(p);
+        }
+        return config;
+    }
+
+    private static void addFiles(File dir, String path, Map<String, Properties> files)
+            throws IOException {
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+        for (File f : list) {
+            String name = path + f.getName();
+            if (f.isDirectory()) {
+                addFiles(f, name + "/", files);
+            } else if (name.endsWith(".properties") && name.equals(name.toLowerCase())) {
+                Properties p = new Properties();
+                InputStream is = new FileInputStream(f);
+                try {
+                    p.load(new InputStreamReader(is, "UTF-8"));
+                } finally {
+                    is.close();
+                }
+                files.put(name, p);
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Map<String, Properties> files,
+            Map<String, Map<String, String>> values) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(files.size());
+        for (Map.Entry<String, Properties> f : files.entrySet()) {
+            out.writeUTF(f.getKey());
+            Map<String, String> sorted = new TreeMap<String, String>();
+            for (String key : f.getValue().stringPropertyNames()) {
+                sorted.put(key, f.getValue().getProperty(key));
+            }
+            write(out, sorted);
+        }
+        out.writeInt(values.size());
+        for (Map.Entry<String, Map<String, String>> kit : values.entrySet()) {
+            out.writeUTF(kit.getKey());
+            write(out, kit.getValue());
+        }
+    }
+
+    private static void write(DataOutputStream out, Map<String, String> map)
+            throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+    }
+
+    /**
+     * Reads a bundle, and returns its files by name.  The resolved values
+     * of the kits are put into values by kit class name.  The stream is
+     * closed.
+     *
+     * @throws IOException if the stream is no bundle or cannot be read
+     */
+    static Map<String, Properties> read(InputStream is,
+            Map<String, Map<String, String>> values) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a configuration bundle");
+            }
+            int count = in.readInt();
+            Map<String, Properties> files = new LinkedHashMap<String, Properties>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                Properties p = new Properties();
+                int n = in.readInt();
+                for (int k = 0; k < n; k++) {
+                    String key = in.readUTF();
+                    p.setProperty(key, in.readUTF());
+                }
+                files.put(name, p);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String kit = in.readUTF();
+                Map<String, String> kitValues = new HashMap<String, String>();
+                int n = in.readInt();
+                for (int k = 0; k < n; k++) {
+                    String key = in.readUTF();
+                    kitValues.put(key, in.readUTF());
+                }
+                values.put(kit, kitValues);
+            }
+            return files;
+        } finally {
+            in.close();
+        }
+    }
+}
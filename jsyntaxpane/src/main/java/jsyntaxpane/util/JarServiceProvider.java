@@ -14,23 +14,39 @@
 package jsyntaxpane.util;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * The properties and lines read by readProperties and readLines are cached
+ * for the life of the process, as are the names of resources that were not
+ * found.  Use prefetch to read all files of a folder into the cache at once.
+ * The properties files in a ConfigurationBundle, if the build made one, are
+ * put into the cache before the first file is read, with the kit values
+ * resolved by the build.
+ *
  * @author subwiz
  * @author Ayman Al-Sairafi
  */
@@ -38,6 +54,17 @@ public class JarServiceProvider {
 
 	public static final String SERVICES_ROOT = "META-INF/services/";
 	private static final Logger LOG = Logger.getLogger(JarServiceProvider.class.getName());
+	// the resources read by name, empty if they were not found
+	private static final Map<String, Properties> PROPERTIES =
+		new ConcurrentHashMap<String, Properties>();
+	private static final Map<String, List<String>> LINES =
+		new ConcurrentHashMap<String, List<String>>();
+	private static volatile boolean bundleRead;
+	// the files and resolved kit values of the ConfigurationBundle used
+	private static volatile Map<String, Properties> bundledFiles =
+		Collections.emptyMap();
+	private static volatile Map<String, Map<String, String>> bundledValues =
+		Collections.emptyMap();
 
 	/**
 	 * Prevents anyone from instantiating this class.
@@ -115,17 +142,34 @@ public class JarServiceProvider {
 	 * @return Property file read.
 	 */
 	public static Properties readProperties(String name) {
-		Properties props = new Properties();
 		String serviceFile = name.toLowerCase();
 		if (!serviceFile.endsWith(".properties")) {
 			serviceFile += ".properties";
 		}
-		InputStream is = findResource(serviceFile);
-		if (is != null) {
+		readBundle();
+		Properties props = PROPERTIES.get(serviceFile);
+		if (props == null) {
+			InputStream is = findResource(serviceFile);
+			props = (is == null) ? new Properties() : loadProperties(is);
+			PROPERTIES.put(serviceFile, props);
+		}
+		// the cached instance must not be changed by callers
+		Properties copy = new Properties();
+		copy.putAll(props);
+		return copy;
+	}
+
+	private static Properties loadProperties(InputStream is) {
+		Properties props = new Properties();
+		try {
+			props.load(new InputStreamReader(is, "UTF-8"));
+		} catch (IOException ex) {
+			LOG.log(Level.SEVERE, null, ex);
+		} finally {
 			try {
-				props.load(new InputStreamReader(is, "UTF-8"));
+				is.close();
 			} catch (IOException ex) {
-				Logger.getLogger(JarServiceProvider.class.getName()).log(Level.SEVERE, null, ex);
+				LOG.log(Level.SEVERE, null, ex);
 			}
 		}
 		return props;
@@ -212,10 +256,19 @@ public class JarServiceProvider {
 	 * @return List of Strings for each line read. or EMPTY_LIST if URL is not found
 	 */
 	public static List<String> readLines(String url) {
-		InputStream is = findResource(url);
-		if (is == null) {
+		List<String> lines = LINES.get(url);
+		if (lines == null) {
+			InputStream is = findResource(url);
+			lines = (is == null) ? Collections.<String>emptyList() : loadLines(is);
+			LINES.put(url, lines);
+		}
+		if (lines == Collections.EMPTY_LIST) {
 			return Collections.EMPTY_LIST;
 		}
+		return new ArrayList<String>(lines);
+	}
+
+	private static List<String> loadLines(InputStream is) {
 		List<String> lines = new ArrayList<String>();
 		try {
 			BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
@@ -282,4 +335,231 @@ public class JarServiceProvider {
 	public static InputStream findResource(String url) {
 		return findResource(url, getClassLoader());
 	}
+
+	/**
+	 * Reads all .properties and .txt files in SERVICES_ROOT/folder and its
+	 * subfolders into the cache used by readProperties and readLines, in
+	 * one pass over each jar or directory holding them.  The jars and
+	 * directories are visited in the order the ClassLoader searches them,
+	 * so a file found in one hides the files of the same name in the next
+	 * ones.  The files findResource would find without SERVICES_ROOT are
+	 * skipped and read as usual when needed.
+	 *
+	 * Jars without an entry for the folder itself are not seen by the
+	 * ClassLoader's getResources, so they are skipped, and the files in
+	 * them do not hide the files of the others.
+	 *
+	 * @param folder name of the folder, such as "jsyntaxpane"
+	 */
+	public static void prefetch(String folder) {
+		long start = System.nanoTime();
+		int count = 0;
+		readBundle();
+		ClassLoader cl = getClassLoader();
+		String root = SERVICES_ROOT + folder + "/";
+		try {
+			// the names of the files already read, or hidden by another file
+			Set<String> hidden = new HashSet<String>();
+			hidePlainFiles(cl, folder + "/", hidden);
+			Enumeration<URL> e = cl.getResources(root);
+			while (e.hasMoreElements()) {
+				URL u = e.nextElement();
+				if (u.getProtocol().equals("jar")) {
+					count += addFiles(u, root, SERVICES_ROOT, true, hidden);
+				} else if (u.getProtocol().equals("file")) {
+					count += addFiles(new File(u.toURI()), root, SERVICES_ROOT,
+						true, hidden);
+				}
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Cannot prefetch " + root, ex);
+		} catch (URISyntaxException ex) {
+			LOG.log(Level.WARNING, "Cannot prefetch " + root, ex);
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.log(Level.FINE, "Prefetched {0} files of {1} in {2} ms", new Object[]{
+				count, root, (System.nanoTime() - start) / 1000000});
+		}
+	}
+
+	/*
+	 * Hides the files under the given path findResource would find
+	 * without SERVICES_ROOT, as it looks for those first
+	 */
+	private static void hidePlainFiles(ClassLoader cl, String path, Set<String> hidden)
+		throws IOException, URISyntaxException {
+		Enumeration<URL> e = cl.getResources(path);
+		while (e.hasMoreElements()) {
+			URL u = e.nextElement();
+			if (u.getProtocol().equals("jar")) {
+				addFiles(u, path, "", false, hidden);
+			} else if (u.getProtocol().equals("file")) {
+				addFiles(new File(u.toURI()), path, "", false, hidden);
+			}
+		}
+	}
+
+	/*
+	 * Adds the .properties and .txt files under path in the jar of
+	 * rootUrl, which is the URL of path in it.  See addFile.
+	 */
+	private static int addFiles(URL rootUrl, String path, String prefix,
+		boolean read, Set<String> hidden) throws IOException, URISyntaxException {
+		URL jarUrl = ((JarURLConnection) rootUrl.openConnection()).getJarFileURL();
+		if (!jarUrl.getProtocol().equals("file")) {
+			return 0;
+		}
+		int count = 0;
+		JarFile jar = new JarFile(new File(jarUrl.toURI()));
+		try {
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (!entry.isDirectory() && name.startsWith(path) &&
+					addFile(name.substring(prefix.length()), read, hidden)) {
+					cache(name.substring(prefix.length()), jar.getInputStream(entry));
+					count++;
+				}
+			}
+		} finally {
+			jar.close();
+		}
+		return count;
+	}
+
+	/*
+	 * Adds the .properties and .txt files in dir, whose resource name is
+	 * path, and its subfolders.  See addFile.
+	 */
+	private static int addFiles(File dir, String path, String prefix,
+		boolean read, Set<String> hidden) throws IOException {
+		int count = 0;
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		for (File f : files) {
+			String name = path + f.getName();
+			if (f.isDirectory()) {
+				count += addFiles(f, name + "/", prefix, read, hidden);
+			} else if (addFile(name.substring(prefix.length()), read, hidden)) {
+				cache(name.substring(prefix.length()), new FileInputStream(f));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Hides the file with the given name, relative to prefix, if it is a
+	 * .properties or .txt file readProperties or readLines would read with
+	 * that name and is not cached or hidden yet.  Returns true if it should
+	 * then be read into the cache.
+	 */
+	private static boolean addFile(String name, boolean read, Set<String> hidden) {
+		if (name.endsWith(".properties")) {
+			if (!name.equals(name.toLowerCase()) || PROPERTIES.containsKey(name)) {
+				return false;
+			}
+		} else if (!name.endsWith(".txt") || LINES.containsKey(name)) {
+			return false;
+		}
+		return hidden.add(name) && read;
+	}
+
+	/*
+	 * Puts the files of the ConfigurationBundle into the cache, once.  The
+	 * bundle is only used if the ClassLoader finds the services folder in
+	 * the jar or directory holding it first, so no other file comes before
+	 * the bundled ones.  Like prefetch, the files findResource would find
+	 * without SERVICES_ROOT are skipped.
+	 */
+	private static void readBundle() {
+		if (bundleRead) {
+			return;
+		}
+		synchronized (PROPERTIES) {
+			if (bundleRead) {
+				return;
+			}
+			bundleRead = true;
+			ClassLoader cl = getClassLoader();
+			URL url = cl.getResource(SERVICES_ROOT + ConfigurationBundle.NAME);
+			if (url == null) {
+				return;
+			}
+			String ext = url.toExternalForm();
+			String root = ext.substring(0, ext.length() - ConfigurationBundle.NAME.length());
+			URL first = cl.getResource(SERVICES_ROOT + ConfigurationBundle.FOLDER);
+			if (first == null ||
+				!first.toExternalForm().equals(root + ConfigurationBundle.FOLDER)) {
+				LOG.log(Level.FINE, "Not using {0}, other files come first", url);
+				return;
+			}
+			try {
+				Set<String> hidden = new HashSet<String>();
+				hidePlainFiles(cl, ConfigurationBundle.FOLDER, hidden);
+				Map<String, Map<String, String>> values =
+					new HashMap<String, Map<String, String>>();
+				Map<String, Properties> files = ConfigurationBundle.read(url.openStream(),
+					values);
+				int count = 0;
+				for (Map.Entry<String, Properties> e : files.entrySet()) {
+					String key = e.getKey();
+					if (!hidden.contains(key) && !PROPERTIES.containsKey(key)) {
+						PROPERTIES.put(key, e.getValue());
+						count++;
+					}
+				}
+				bundledFiles = files;
+				bundledValues = values;
+				LOG.log(Level.FINE, "Read {0} of {1} files from {2}", new Object[]{
+					count, files.size(), url});
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Cannot read " + url, ex);
+			} catch (URISyntaxException ex) {
+				LOG.log(Level.WARNING, "Cannot read " + url, ex);
+			}
+		}
+	}
+
+	/*
+	 * Returns the file with the given name in the ConfigurationBundle used,
+	 * or null.  It must not be changed.
+	 */
+	static Properties getBundledFile(String name) {
+		readBundle();
+		return bundledFiles.get(name);
+	}
+
+	/*
+	 * Returns the values the build resolved for the kit of the given class
+	 * from the bundled files, or null.  They must not be changed.
+	 */
+	static Map<String, String> getBundledValues(Class<?> kit) {
+		readBundle();
+		return bundledValues.get(kit.getName());
+	}
+
+	private static void cache(String key, InputStream is) {
+		if (key.endsWith(".properties")) {
+			PROPERTIES.put(key, loadProperties(is));
+		} else {
+			LINES.put(key, loadLines(is));
+		}
+	}
+
+	/**
+	 * Drops all cached resources, so they are read again when needed
+	 */
+	public static void clearCache() {
+		synchronized (PROPERTIES) {
+			PROPERTIES.clear();
+			LINES.clear();
+			bundledFiles = Collections.emptyMap();
+			bundledValues = Collections.emptyMap();
+			bundleRead = false;
+		}
+	}
 }